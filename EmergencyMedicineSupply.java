@@ -1,12 +1,66 @@
 import java.awt.*;
-import java.text.DecimalFormat;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
@@ -171,12 +225,13 @@ class MedicineFormDialog extends JDialog {
     private final JTextField supplierField = new JTextField();
     private final JTextField priceField = new JTextField();
     private final JTextField stockField = new JTextField();
+    private final JTextField expiryField = new JTextField(); // Optional; applies to the stock being added.
     private final JComboBox<String> pharmacyComboBox = new JComboBox<>();
     private boolean isSaved = false; // This flag tracks if the user clicked "Save".
 
     public MedicineFormDialog(Frame owner, String title, Medicine medicineToEdit) {
         super(owner, title, true);
-        setSize(400, 350);
+        setSize(400, 380);
         setLocationRelativeTo(owner);
         setLayout(new BorderLayout(10, 10));
 
@@ -188,8 +243,8 @@ class MedicineFormDialog extends JDialog {
         gbc.fill = GridBagConstraints.HORIZONTAL;
 
         // I use arrays and a loop to create the form, which is cleaner than adding each line manually.
-        String[] labels = {"Name:", "Category:", "Supplier:", "Price (BDT):", "Stock:", "Pharmacy:"};
-        JComponent[] components = {nameField, categoryField, supplierField, priceField, stockField, pharmacyComboBox};
+        String[] labels = {"Name:", "Category:", "Supplier:", "Price (BDT):", "Stock:", "Expiry (yyyy-mm-dd):", "Pharmacy:"};
+        JComponent[] components = {nameField, categoryField, supplierField, priceField, stockField, expiryField, pharmacyComboBox};
         for (int i = 0; i < labels.length; i++) {
             gbc.gridx = 0;
             gbc.gridy = i;
@@ -208,9 +263,11 @@ class MedicineFormDialog extends JDialog {
             nameField.setText(medicineToEdit.getName());
             categoryField.setText(medicineToEdit.getCategory());
             supplierField.setText(medicineToEdit.getSupplier());
-            priceField.setText(String.valueOf(medicineToEdit.getPrice()));
+            priceField.setText(Money.toPlainString(medicineToEdit.getPricePaisa()));
             stockField.setText(String.valueOf(medicineToEdit.getStock()));
             pharmacyComboBox.setSelectedItem(medicineToEdit.getPharmacyName());
+            // When editing, an expiry date only applies to any stock added on top of what's already there.
+            expiryField.setToolTipText("Expiry date of the extra stock, if you're adding some");
             // I disable these fields because you usually don't change a medicine's name or its pharmacy when editing.
             pharmacyComboBox.setEnabled(false);
             nameField.setEditable(false);
@@ -248,9 +305,15 @@ class MedicineFormDialog extends JDialog {
                 throw new Exception("Name and Category cannot be empty.");
             }
             // I try to convert text to numbers. If it fails, I catch the error.
-            Double.parseDouble(priceField.getText());
-            Integer.parseInt(stockField.getText());
+            Money.parse(priceField.getText());
+            if (Integer.parseInt(stockField.getText()) < 0) {
+                throw new Exception("Stock cannot be negative.");
+            }
+            parseExpiry();
             return true;
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Expiry must be a date like 2026-12-31, or left empty.", "Input Error", JOptionPane.ERROR_MESSAGE);
+            return false;
         } catch (NumberFormatException e) {
             JOptionPane.showMessageDialog(this, "Price and Stock must be valid numbers.", "Input Error", JOptionPane.ERROR_MESSAGE);
             return false;
@@ -271,11 +334,18 @@ class MedicineFormDialog extends JDialog {
             nameField.getText().trim(),
             categoryField.getText().trim(),
             supplierField.getText().trim(),
-            Double.parseDouble(priceField.getText()),
+            Money.parse(priceField.getText()),
             Integer.parseInt(stockField.getText()),
-            (String) pharmacyComboBox.getSelectedItem()
+            (String) pharmacyComboBox.getSelectedItem(),
+            parseExpiry()
         );
     }
+
+    // An empty expiry field means the stock doesn't expire.
+    private LocalDate parseExpiry() {
+        String text = expiryField.getText().trim();
+        return text.isEmpty() ? null : LocalDate.parse(text);
+    }
 }
 
 
@@ -286,17 +356,26 @@ class MedicineFormDialog extends JDialog {
 /**
  * This is the main window for the "Buyer" role.
  * It features live search, distance calculation, and a "Buy" functionality.
- * The closest pharmacy is highlighted in the table for easy identification.
+ * For each medicine, the closest pharmacy that has it in stock is highlighted in the table for easy identification.
  */
 class BuyerDashboardFrame extends JFrame {
-    private final PharmacyService pharmacyService = new PharmacyService();
+    private static final String[] DISTANCE_LABELS = {"Any distance", "1 km", "2 km", "5 km", "10 km"};
+    private static final double[] DISTANCE_KM = {0, 1, 2, 5, 10};
+    private final PharmacyService pharmacyService = PharmacyService.shared();
     private final DefaultTableModel tableModel;
     private final JTable resultsTable;
     private final JTextField searchField;
+    private final JComboBox<FacetOption> categoryComboBox = new JComboBox<>();
+    private final JComboBox<FacetOption> supplierComboBox = new JComboBox<>();
+    private final JComboBox<String> distanceComboBox = new JComboBox<>(DISTANCE_LABELS);
+    private boolean refreshingFacets = false; // Set while I rebuild the dropdowns, so that doesn't trigger another search.
     private final TableRowSorter<DefaultTableModel> sorter;
+    private final CellFormatter cellFormatter = new CellFormatter();
     private final User user;
     private final Location userLocation;
-    private String closestPharmacyName = "";
+    // The rows currently in the table (in model order) and, per medicine name, which of them is the closest source.
+    private List<SearchResult> shownResults = Collections.emptyList();
+    private Map<String, SearchResult> nearestByMedicine = Collections.emptyMap();
 
     public BuyerDashboardFrame(User user, Location userLocation) {
         this.user = user;
@@ -336,8 +415,14 @@ class BuyerDashboardFrame extends JFrame {
         JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         searchPanel.setBorder(searchBorder);
         searchPanel.add(new JLabel("Type to search:"));
-        searchField = new JTextField(30);
+        searchField = new JTextField(20);
         searchPanel.add(searchField);
+        // The facet dropdowns show how many medicines each choice would leave, e.g. "Antibiotic (3)".
+        searchPanel.add(new JLabel("Category:"));
+        searchPanel.add(categoryComboBox);
+        searchPanel.add(new JLabel("Supplier:"));
+        searchPanel.add(supplierComboBox);
+        searchPanel.add(distanceComboBox);
         
         // --- I define the columns for our results table ---
         String[] columnNames = {"Name", "Category", "Price (BDT)", "Stock", "Pharmacy", "Distance (km)"};
@@ -349,8 +434,12 @@ class BuyerDashboardFrame extends JFrame {
         resultsTable = new JTable(tableModel);
         setupTableStyle(resultsTable);
 
-        // The Sorter is what enables the awesome live filtering of the table.
+        // The Sorter lets the buyer re-sort the results by clicking a column header.
+        // Price and distance are NumericCells, so I sort them by value rather than as text ("12.50" before "8.00").
         sorter = new TableRowSorter<>(tableModel);
+        sorter.setComparator(2, Comparator.naturalOrder());
+        sorter.setComparator(3, Comparator.naturalOrder());
+        sorter.setComparator(5, Comparator.naturalOrder());
         resultsTable.setRowSorter(sorter);
         
         JScrollPane scrollPane = new JScrollPane(resultsTable);
@@ -372,18 +461,24 @@ class BuyerDashboardFrame extends JFrame {
         add(footerPanel, BorderLayout.SOUTH);
 
         // I load the data as soon as the window opens so it's not empty.
-        populateInitialData();
-        // I apply the custom renderer to highlight the closest pharmacy in green.
-        resultsTable.setDefaultRenderer(Object.class, new ClosestPharmacyRenderer(closestPharmacyName));
+        populateResults();
+        // I apply the custom renderer to highlight the closest pharmacy for each medicine in green.
+        ClosestPharmacyRenderer renderer = new ClosestPharmacyRenderer(this::isNearestRow);
+        resultsTable.setDefaultRenderer(Object.class, renderer);
+        resultsTable.setDefaultRenderer(Number.class, renderer);
 
         // --- Action Listeners for user interactions ---
-        // This listener updates the table filter every time the user types a character.
+        // This listener re-runs the search every time the user types a character.
         searchField.getDocument().addDocumentListener(new DocumentListener() {
-            public void insertUpdate(DocumentEvent e) { filterTable(); }
-            public void removeUpdate(DocumentEvent e) { filterTable(); }
-            public void changedUpdate(DocumentEvent e) { filterTable(); }
+            public void insertUpdate(DocumentEvent e) { populateResults(); }
+            public void removeUpdate(DocumentEvent e) { populateResults(); }
+            public void changedUpdate(DocumentEvent e) { populateResults(); }
         });
         
+        categoryComboBox.addActionListener(e -> { if (!refreshingFacets) populateResults(); });
+        supplierComboBox.addActionListener(e -> { if (!refreshingFacets) populateResults(); });
+        distanceComboBox.addActionListener(e -> populateResults());
+
         buyButton.addActionListener(e -> performBuy());
         // The back button disposes this window and opens the role selection dialog again.
         backButton.addActionListener(e -> {
@@ -405,32 +500,66 @@ class BuyerDashboardFrame extends JFrame {
     }
 
     /**
-     * This method fetches all medicines and populates the table.
-     * It's called initially and after a purchase to refresh the data.
+     * This method runs the search for whatever is in the search box (everything, if it's empty) and populates the table.
+     * It's called initially, on every keystroke and after a purchase to refresh the data.
+     * The service ranks the rows by match quality first and distance second.
      */
-    private void populateInitialData() {
-        List<SearchResult> results = pharmacyService.searchMedicine("", this.userLocation);
-        // I find and store the name of the closest pharmacy to use in the renderer.
-        if (!results.isEmpty()) {
-            this.closestPharmacyName = results.get(0).getPharmacyName();
-        }
+    private void populateResults() {
+        FacetFilter filter = currentFacetFilter();
+        List<SearchResult> results = pharmacyService.searchMedicine(searchField.getText(), this.userLocation, filter);
+        refreshFacetCounts(filter);
+        // I work out the closest pharmacy for every medicine shown, after the filters, so the highlight matches the table.
+        this.shownResults = results;
+        this.nearestByMedicine = PharmacyService.nearestInStock(results);
         tableModel.setRowCount(0); // I clear any previous data.
         for (SearchResult result : results) {
              tableModel.addRow(new Object[]{
                 result.getMedicine().getName(), result.getMedicine().getCategory(),
-                String.format("%.2f", result.getMedicine().getPrice()), result.getMedicine().getStock(),
-                result.getPharmacyName(), String.format("%.2f", result.getDistance()),
+                cellFormatter.money(result.getMedicine().getPricePaisa()), result.getMedicine().getStock(),
+                result.getPharmacyName(), cellFormatter.decimal(result.getDistance(), 2),
             });
         }
     }
 
+    private boolean isNearestRow(int modelRow) {
+        if (modelRow >= shownResults.size()) {
+            return false;
+        }
+        SearchResult row = shownResults.get(modelRow);
+        return nearestByMedicine.get(row.getMedicine().getName()) == row;
+    }
+
+    private FacetFilter currentFacetFilter() {
+        FacetOption category = (FacetOption) categoryComboBox.getSelectedItem();
+        FacetOption supplier = (FacetOption) supplierComboBox.getSelectedItem();
+        return new FacetFilter(category == null ? null : category.getValue(), supplier == null ? null : supplier.getValue(),
+            DISTANCE_KM[distanceComboBox.getSelectedIndex()]);
+    }
+
     /**
-     * This method applies the filter to the table based on the search text.
+     * This method refreshes the counts shown in the category and supplier dropdowns, keeping the current selections.
      */
-    private void filterTable() {
-        String text = searchField.getText();
-        // I apply a case-insensitive regex filter on the "Name" (col 0) and "Pharmacy" (col 4) columns.
-        sorter.setRowFilter(text.trim().length() == 0 ? null : RowFilter.regexFilter("(?i)" + text, 0, 4));
+    private void refreshFacetCounts(FacetFilter filter) {
+        FacetCounts counts = pharmacyService.getFacetCounts(searchField.getText(), this.userLocation, filter);
+        refreshingFacets = true;
+        try {
+            fillFacetComboBox(categoryComboBox, counts.getCategories(), filter.getCategory());
+            fillFacetComboBox(supplierComboBox, counts.getSuppliers(), filter.getSupplier());
+        } finally {
+            refreshingFacets = false;
+        }
+    }
+
+    private void fillFacetComboBox(JComboBox<FacetOption> comboBox, Map<String, Integer> counts, String selectedValue) {
+        comboBox.removeAllItems();
+        comboBox.addItem(new FacetOption(null, 0));
+        counts.forEach((value, count) -> comboBox.addItem(new FacetOption(value, count)));
+        // If the selected value has no matches left, I still keep it (with a 0 count) so the buyer's choice doesn't vanish.
+        FacetOption selected = new FacetOption(selectedValue, counts.getOrDefault(selectedValue, 0));
+        if (selectedValue != null && !counts.containsKey(selectedValue)) {
+            comboBox.addItem(selected);
+        }
+        comboBox.setSelectedItem(selected);
     }
 
     /**
@@ -461,15 +590,20 @@ class BuyerDashboardFrame extends JFrame {
         if (quantityStr != null && !quantityStr.isEmpty()) {
             try {
                 int quantity = Integer.parseInt(quantityStr);
-                if (quantity <= 0 || quantity > med.getStock()) {
-                    JOptionPane.showMessageDialog(this, "Invalid quantity. Must be between 1 and " + med.getStock() + ".", "Input Error", JOptionPane.ERROR_MESSAGE);
+                if (quantity <= 0) {
+                    JOptionPane.showMessageDialog(this, "Invalid quantity. Please enter a number greater than 0.", "Input Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                if (quantity > med.getStock()) {
+                    // This pharmacy alone can't cover it, so I offer to split the order across nearby pharmacies.
+                    offerSplitPurchase(medicineName, quantity);
                     return;
                 }
                 
                 boolean success = pharmacyService.buyMedicine(this.user, pharmacyName, medicineName, quantity);
                 if (success) {
-                    showReceipt(pharmacyName, medicineName, quantity, med.getPrice());
-                    populateInitialData(); // I refresh the table to show the updated stock.
+                    showReceipt(pharmacyName, medicineName, quantity, med.getPricePaisa());
+                    populateResults(); // I refresh the table to show the updated stock.
                 }
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Invalid quantity. Please enter a number.", "Input Error", JOptionPane.ERROR_MESSAGE);
@@ -477,22 +611,74 @@ class BuyerDashboardFrame extends JFrame {
         }
     }
     
+    /**
+     * This method plans a purchase across several nearby pharmacies and, if the buyer agrees, commits it in one step.
+     */
+    private void offerSplitPurchase(String medicineName, int quantity) {
+        FulfilmentPlan plan = pharmacyService.planFulfilment(medicineName, quantity, this.userLocation);
+        if (!plan.isComplete()) {
+            JOptionPane.showMessageDialog(this, "Only " + plan.getPlannedQuantity() + " units of " + medicineName +
+                " are available across the nearest pharmacies.", "Not Enough Stock", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        StringBuilder message = new StringBuilder("No single pharmacy has " + quantity + " units of " + medicineName + ".\n");
+        message.append("You can get them from these pharmacies instead:\n\n");
+        for (FulfilmentPlan.Allocation a : plan.getAllocations()) {
+            message.append(String.format("  %d from %s (%.2f km, BDT %s each)%n",
+                a.getQuantity(), a.getPharmacyName(), a.getDistance(), Money.format(a.getUnitPricePaisa())));
+        }
+        message.append("\nTotal: BDT ").append(Money.format(plan.getTotalPaisa())).append("\nBuy from these pharmacies?");
+        int confirm = JOptionPane.showConfirmDialog(this, message.toString(), "Split Purchase", JOptionPane.YES_NO_OPTION);
+
+        if (confirm == JOptionPane.YES_OPTION) {
+            if (pharmacyService.commitPlan(this.user, plan)) {
+                showPlanReceipt(plan);
+                populateResults(); // I refresh the table to show the updated stock.
+            } else {
+                JOptionPane.showMessageDialog(this, "The stock or price changed while you were deciding. Please try again.", "Purchase Failed", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
     /**
      * This method displays a formatted receipt in a dialog box after a successful purchase.
      */
-    private void showReceipt(String pharmacyName, String medicineName, int quantity, double pricePerUnit) {
-        double total = quantity * pricePerUnit;
-        DecimalFormat df = new DecimalFormat("#,##0.00");
+    private void showReceipt(String pharmacyName, String medicineName, int quantity, long pricePerUnitPaisa) {
+        long totalPaisa = Money.times(pricePerUnitPaisa, quantity);
         String receiptText = "          *** RECEIPT ***\n\n" +
                              "Customer: " + this.user.getName() + "\n" +
                              "Pharmacy: " + pharmacyName + "\n" +
                              "-----------------------------------------\n" +
                              "Item: " + medicineName + "\n" +
                              "Quantity: " + quantity + "\n" +
-                             "Price/Unit: BDT " + df.format(pricePerUnit) + "\n" +
+                             "Price/Unit: BDT " + Money.format(pricePerUnitPaisa) + "\n" +
                              "-----------------------------------------\n" +
-                             "TOTAL: BDT " + df.format(total) + "\n\n" +
+                             "TOTAL: BDT " + Money.format(totalPaisa) + "\n\n" +
                              "Thank you for your purchase!";
+        showReceiptText(receiptText);
+    }
+
+    /**
+     * Same as showReceipt, but with one line per pharmacy for a split purchase.
+     */
+    private void showPlanReceipt(FulfilmentPlan plan) {
+        StringBuilder receipt = new StringBuilder("          *** RECEIPT ***\n\n");
+        receipt.append("Customer: ").append(this.user.getName()).append("\n");
+        receipt.append("Item: ").append(plan.getMedicineName()).append("\n");
+        receipt.append("-----------------------------------------\n");
+        for (FulfilmentPlan.Allocation a : plan.getAllocations()) {
+            receipt.append(a.getPharmacyName()).append("\n");
+            receipt.append("  ").append(a.getQuantity()).append(" x BDT ").append(Money.format(a.getUnitPricePaisa()))
+                   .append(" = BDT ").append(Money.format(Money.times(a.getUnitPricePaisa(), a.getQuantity()))).append("\n");
+        }
+        receipt.append("-----------------------------------------\n");
+        receipt.append("TOTAL: BDT ").append(Money.format(plan.getTotalPaisa())).append("\n\n");
+        receipt.append("Thank you for your purchase!");
+        showReceiptText(receipt.toString());
+    }
+
+    private void showReceiptText(String receiptText) {
         JTextArea textArea = new JTextArea(receiptText);
         textArea.setFont(new Font("Monospaced", Font.PLAIN, 14));
         textArea.setEditable(false);
@@ -506,9 +692,12 @@ class BuyerDashboardFrame extends JFrame {
  * and viewing the sales history.
  */
 class AdminDashboardFrame extends JFrame {
-    private final PharmacyService pharmacyService = new PharmacyService();
+    private static final int REORDER_LIST_SIZE = 50;
+    private static final int NEAR_EXPIRY_DAYS = 30;
+    private final PharmacyService pharmacyService = PharmacyService.shared();
     private final DefaultTableModel tableModel;
     private final JTable inventoryTable;
+    private final CellFormatter cellFormatter = new CellFormatter();
     private final User user;
     private final Location location;
 
@@ -558,10 +747,14 @@ class AdminDashboardFrame extends JFrame {
         JButton editButton = new JButton("✏️ Edit Medicine");
         JButton deleteButton = new JButton("❌ Delete Medicine");
         JButton historyButton = new JButton("📜 View Sales History");
+        JButton reorderButton = new JButton("📉 Reorder Alerts");
+        JButton expiryButton = new JButton("⏳ Expiring Stock");
         footerPanel.add(addButton);
         footerPanel.add(editButton);
         footerPanel.add(deleteButton);
         footerPanel.add(historyButton);
+        footerPanel.add(reorderButton);
+        footerPanel.add(expiryButton);
 
         add(headerPanel, BorderLayout.NORTH);
         add(contentPanel, BorderLayout.CENTER);
@@ -574,12 +767,28 @@ class AdminDashboardFrame extends JFrame {
             this.dispose();
             new RoleSelectionDialog(this.user, this.location).setVisible(true);
         });
-        historyButton.addActionListener(e -> new SalesHistoryDialog(this).setVisible(true));
+        historyButton.addActionListener(e -> showSalesHistory());
+        reorderButton.addActionListener(e ->
+            new ReorderAlertsDialog(this, pharmacyService.getReorderSuggestions(REORDER_LIST_SIZE)).setVisible(true));
+        expiryButton.addActionListener(e ->
+            new ExpiringStockDialog(this, pharmacyService.getLotsExpiringWithin(NEAR_EXPIRY_DAYS), NEAR_EXPIRY_DAYS).setVisible(true));
         addButton.addActionListener(e -> performAdd());
         editButton.addActionListener(e -> performEdit());
         deleteButton.addActionListener(e -> performDelete());
     }
 
+    private void showSalesHistory() {
+        long archivedRevenuePaisa;
+        try {
+            archivedRevenuePaisa = pharmacyService.getArchivedRevenuePaisa();
+        } catch (IOException ex) {
+            // Without the archive the total would be silently short, so I'd rather say so than show it.
+            JOptionPane.showMessageDialog(this, "Could not read the sales archive: " + ex.getMessage(), "Sales History", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        new SalesHistoryDialog(this, pharmacyService.getPurchaseHistory(), archivedRevenuePaisa).setVisible(true);
+    }
+
     private void setupTableStyle(JTable table) {
         table.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         table.setRowHeight(28);
@@ -595,7 +804,7 @@ class AdminDashboardFrame extends JFrame {
         for (SearchResult result : results) {
             tableModel.addRow(new Object[]{
                 result.getMedicine().getName(), result.getMedicine().getCategory(), result.getMedicine().getSupplier(),
-                String.format("%.2f", result.getMedicine().getPrice()), result.getMedicine().getStock(),
+                cellFormatter.money(result.getMedicine().getPricePaisa()), result.getMedicine().getStock(),
                 result.getPharmacyName()
             });
         }
@@ -661,8 +870,13 @@ class AdminDashboardFrame extends JFrame {
 // Helper Dialogs, Renderers, and Custom Components
 // ======================================================================
 class SalesHistoryDialog extends JDialog {
-    public SalesHistoryDialog(Frame owner) {
-        super(owner, "Sales Transaction History", true);
+    /**
+     * @param archivedRevenuePaisa revenue of the sales already moved to the archive (so not in 'records'),
+     *                             or -1 if archiving is off and 'records' is the whole history.
+     */
+    public SalesHistoryDialog(Frame owner, List<PurchaseRecord> records, long archivedRevenuePaisa) {
+        super(owner, archivedRevenuePaisa < 0 ? "Sales Transaction History"
+                : "Sales Transaction History (recent sales only, older sales are archived)", true);
         setSize(800, 500);
         setLocationRelativeTo(owner);
         
@@ -672,51 +886,212 @@ class SalesHistoryDialog extends JDialog {
         table.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         table.setRowHeight(25);
         
-        List<PurchaseRecord> records = PharmacyService.getPurchaseHistory();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        DecimalFormat df = new DecimalFormat("#,##0.00");
+        CellFormatter cellFormatter = new CellFormatter();
+        long revenuePaisa = 0;
 
         // I loop backwards to show the most recent purchase at the top.
         for (int i = records.size() - 1; i >= 0; i--) {
             PurchaseRecord record = records.get(i);
             model.addRow(new Object[]{
                 sdf.format(record.getTimestamp()), record.getCustomerName(), record.getMedicineName(),
-                record.getQuantity(), df.format(record.getTotalPrice()), record.getPharmacyName()
+                record.getQuantity(), cellFormatter.moneyGrouped(record.getTotalPaisa()), record.getPharmacyName()
+            });
+            revenuePaisa += record.getTotalPaisa();
+        }
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        // The revenue total is summed in exact paisa, so it always matches the rows above to the last paisa.
+        // With an archive, I show the archived part separately, so it's clear the rows above aren't everything.
+        JLabel totalLabel = new JLabel(archivedRevenuePaisa < 0 ? "Total revenue: BDT " + Money.format(revenuePaisa)
+                : "Total revenue: BDT " + Money.format(revenuePaisa) + " shown above + BDT " + Money.format(archivedRevenuePaisa)
+                  + " archived = BDT " + Money.format(revenuePaisa + archivedRevenuePaisa));
+        totalLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        totalLabel.setBorder(new EmptyBorder(8, 10, 8, 10));
+        add(totalLabel, BorderLayout.SOUTH);
+    }
+}
+
+/**
+ * Shows the reorder list from the ReorderEngine: the medicines predicted to run out first are at the top.
+ */
+class ReorderAlertsDialog extends JDialog {
+    public ReorderAlertsDialog(Frame owner, List<ReorderSuggestion> suggestions) {
+        super(owner, "Low-Stock Reorder Alerts", true);
+        setSize(800, 400);
+        setLocationRelativeTo(owner);
+
+        String[] columnNames = {"Medicine", "Pharmacy", "Stock", "Sold/Day", "Days Left", "Suggested Order"};
+        DefaultTableModel model = new DefaultTableModel(columnNames, 0) {
+            public boolean isCellEditable(int row, int column) { return false; }
+        };
+        JTable table = new JTable(model);
+        table.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        table.setRowHeight(25);
+
+        CellFormatter cellFormatter = new CellFormatter();
+        for (ReorderSuggestion s : suggestions) {
+            model.addRow(new Object[]{
+                s.getMedicineName(), s.getPharmacyName(), s.getStock(),
+                cellFormatter.decimal(s.getUnitsPerDay(), 1), cellFormatter.decimal(s.getDaysLeft(), 1), s.getSuggestedOrder()
+            });
+        }
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        if (suggestions.isEmpty()) {
+            // The engine only learns from sales made in this session, so a fresh start has nothing to rank yet.
+            JLabel emptyLabel = new JLabel("No sales recorded yet, so there is nothing to predict.");
+            emptyLabel.setBorder(new EmptyBorder(8, 10, 8, 10));
+            add(emptyLabel, BorderLayout.SOUTH);
+        }
+    }
+}
+
+/**
+ * Shows the stock lots that expire soon, with what they're worth, so the shopkeeper can discount or return them in time.
+ */
+class ExpiringStockDialog extends JDialog {
+    public ExpiringStockDialog(Frame owner, List<StockLot> lots, int withinDays) {
+        super(owner, "Stock Expiring Within " + withinDays + " Days", true);
+        setSize(800, 400);
+        setLocationRelativeTo(owner);
+
+        String[] columnNames = {"Medicine", "Pharmacy", "Quantity", "Expires", "Days Left", "Value (BDT)"};
+        DefaultTableModel model = new DefaultTableModel(columnNames, 0) {
+            public boolean isCellEditable(int row, int column) { return false; }
+        };
+        JTable table = new JTable(model);
+        table.setFont(new Font("Segoe UI", Font.PLAIN, 14));
+        table.setRowHeight(25);
+
+        LocalDate today = LocalDate.now();
+        CellFormatter cellFormatter = new CellFormatter();
+        long totalPaisa = 0;
+        for (StockLot lot : lots) {
+            Medicine m = lot.getMedicine();
+            long valuePaisa = Money.times(m.getPricePaisa(), lot.getQuantity());
+            totalPaisa += valuePaisa;
+            model.addRow(new Object[]{
+                m.getName(), m.getPharmacyName(), lot.getQuantity(), lot.getExpiryDate().toString(),
+                ChronoUnit.DAYS.between(today, lot.getExpiryDate()), cellFormatter.moneyGrouped(valuePaisa)
             });
         }
-        add(new JScrollPane(table));
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JLabel totalLabel = new JLabel("Value at risk: BDT " + Money.format(totalPaisa));
+        totalLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        totalLabel.setBorder(new EmptyBorder(8, 10, 8, 10));
+        add(totalLabel, BorderLayout.SOUTH);
     }
 }
 
+/**
+ * Shows highlighted rows in bold green. The table's owner decides which rows (by model index) count as closest.
+ */
 class ClosestPharmacyRenderer extends DefaultTableCellRenderer {
-    private final String closestPharmacyName;
+    private static final Color CLOSEST_COLOR = new Color(0, 120, 0); // A nice dark green color.
+    private final IntPredicate isClosestRow;
+    // deriveFont() builds a new Font on every call, so I derive the plain and bold versions once per table font.
+    private Font baseFont, plainFont, boldFont;
 
-    public ClosestPharmacyRenderer(String closestPharmacyName) {
-        this.closestPharmacyName = closestPharmacyName;
+    public ClosestPharmacyRenderer(IntPredicate isClosestRow) {
+        this.isClosestRow = isClosestRow;
     }
 
     @Override
     public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
         Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
-        int modelRow = table.convertRowIndexToModel(row);
-        String currentPharmacy = (String) table.getModel().getValueAt(modelRow, 4); 
-
-        // I check if the pharmacy in this row is the closest one.
-        if (currentPharmacy != null && currentPharmacy.equals(closestPharmacyName)) {
-            c.setFont(c.getFont().deriveFont(Font.BOLD));
-            c.setForeground(new Color(0, 120, 0)); // A nice dark green color.
+        if (table.getFont() != baseFont) {
+            baseFont = table.getFont();
+            plainFont = baseFont.deriveFont(Font.PLAIN);
+            boldFont = baseFont.deriveFont(Font.BOLD);
+        }
+        // I check if the pharmacy in this row is the closest one for its medicine.
+        if (isClosestRow.test(table.convertRowIndexToModel(row))) {
+            c.setFont(boldFont);
+            c.setForeground(CLOSEST_COLOR);
         } else {
              c.setForeground(table.getForeground());
-             c.setFont(c.getFont().deriveFont(Font.PLAIN));
+             c.setFont(plainFont);
         }
         return c;
     }
 }
 
+/**
+ * A number shown in a table cell. It keeps the raw value for sorting and the text it was formatted to once,
+ * when the row was added. Painting the cell then just reuses that text (DefaultTableCellRenderer calls toString()),
+ * so scrolling doesn't format anything.
+ */
+class NumericCell implements Comparable<NumericCell> {
+    private final double value;
+    private final String text;
+    public NumericCell(double value, String text) { this.value = value; this.text = text; }
+    public double getValue() { return value; }
+    @Override
+    public int compareTo(NumericCell other) { return Double.compare(value, other.value); }
+    @Override
+    public String toString() { return text; }
+}
+
+/**
+ * Formats numbers for table cells without String.format (which parses its pattern and allocates a Formatter on every call).
+ * It reuses one StringBuilder, so it's meant for the Event Dispatch Thread only.
+ */
+class CellFormatter {
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000};
+    private final StringBuilder buffer = new StringBuilder(32);
+
+    /**
+     * A price or total, e.g. "1234.50".
+     */
+    public NumericCell money(long paisa) {
+        buffer.setLength(0);
+        return new NumericCell(paisa, Money.appendTo(buffer, paisa, false).toString());
+    }
+
+    /**
+     * An amount with thousands separators, e.g. "1,234.50", for reports.
+     */
+    public NumericCell moneyGrouped(long paisa) {
+        buffer.setLength(0);
+        return new NumericCell(paisa, Money.appendTo(buffer, paisa, true).toString());
+    }
+
+    /**
+     * A decimal rounded half-up to the given number of places (at most 4), like String.format("%.2f").
+     */
+    public NumericCell decimal(double value, int places) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return new NumericCell(value, Double.toString(value));
+        }
+        long scale = POWERS_OF_TEN[places];
+        long scaled = Math.round(Math.abs(value) * scale);
+        buffer.setLength(0);
+        if (value < 0 && scaled != 0) {
+            buffer.append('-');
+        }
+        buffer.append(scaled / scale);
+        if (places > 0) {
+            buffer.append('.');
+            long fraction = scaled % scale;
+            for (long p = scale / 10; p > 0; p /= 10) {
+                buffer.append((char) ('0' + (fraction / p) % 10));
+            }
+        }
+        return new NumericCell(value, buffer.toString());
+    }
+}
+
 /**
  * This is a custom JPanel with a gradient background. I use it for the headers to make them look cool.
  */
 class GradientPanel extends JPanel {
+    private static final Color TOP_COLOR = new Color(60, 63, 65);
+    private static final Color BOTTOM_COLOR = new Color(90, 93, 95);
+    // The paint only depends on the height, so I keep it until the panel is resized.
+    private GradientPaint cachedPaint;
+    private int cachedHeight = -1;
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
@@ -724,10 +1099,11 @@ class GradientPanel extends JPanel {
         g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         int w = getWidth();
         int h = getHeight();
-        Color color1 = new Color(60, 63, 65);
-        Color color2 = new Color(90, 93, 95);
-        GradientPaint gp = new GradientPaint(0, 0, color1, 0, h, color2);
-        g2d.setPaint(gp);
+        if (h != cachedHeight) {
+            cachedPaint = new GradientPaint(0, 0, TOP_COLOR, 0, h, BOTTOM_COLOR);
+            cachedHeight = h;
+        }
+        g2d.setPaint(cachedPaint);
         g2d.fillRect(0, 0, w, h);
     }
 }
@@ -762,93 +1138,445 @@ class RoundedPanel extends JPanel {
 // Service and Data Layer
 // ======================================================================
 class PharmacyService {
-    // I make these lists 'static' so that the data persists throughout the entire application's session.
-    // This means the stock levels and sales history are shared across all windows.
-    private static final List<Pharmacy> pharmacies = DataService.getPharmacies();
-    private static final List<PurchaseRecord> purchaseHistory = new ArrayList<>();
+    private static final int SEARCH_CACHE_SIZE = 512;
+    // One background thread runs the housekeeping: it retires expired lots every hour (and once at startup), so they
+    // never show up as available stock, and rolls old sales history into the archive once a day.
+    private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "maintenance");
+        t.setDaemon(true); // This thread must not keep the app alive after the last window closes.
+        return t;
+    });
+
+    private final List<Pharmacy> pharmacies;
+    private final Map<String, Pharmacy> pharmaciesByName = new HashMap<>();
+    private final SalesHistoryIndex salesHistory = new SalesHistoryIndex(SalesHistoryIndex.DEFAULT_SEGMENT_MILLIS);
+    private ColumnarSalesArchive salesArchive; // Where old sales go, once startArchiving() is called.
+    private long keepHotMillis;
+    private final ReorderEngine reorderEngine = new ReorderEngine();
+    // Every change to stock goes through the write lock, so a multi-pharmacy plan can be checked and applied as one step.
+    // Searches and lookups walk the inventory lists under the read lock, so they never see one half-changed
+    // (a read replica is searched while its delivery thread applies changes) but don't wait for each other.
+    private final ReentrantReadWriteLock stockLock = new ReentrantReadWriteLock();
+    private final FulfilmentPlanner fulfilmentPlanner = new FulfilmentPlanner();
+    private final FuzzyMedicineIndex nameIndex;
+    private final SearchResultCache searchCache = new SearchResultCache(SEARCH_CACHE_SIZE);
+    private final CatalogBitmapIndex catalogIndex;
+    private final ExpiryTracker expiryTracker;
+    // Told about every inventory change, while stockLock's write lock is held, e.g. by ReplicationPublisher.
+    private final List<InventoryListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The app's own service. I keep it in one static place so that the stock levels and sales history
+     * persist throughout the session and are shared across all windows.
+     */
+    public static PharmacyService shared() {
+        return Shared.INSTANCE;
+    }
+
+    // The holder class means the default catalog is only loaded when a window first asks for it.
+    private static class Shared {
+        static final PharmacyService INSTANCE = new PharmacyService(DataService.getPharmacies());
+        static {
+            INSTANCE.startExpirySweeper();
+            // If "ems.archive" names a directory, sales older than a week are moved there (see ColumnarSalesArchive).
+            String archiveDir = System.getProperty("ems.archive");
+            if (archiveDir != null) {
+                try {
+                    INSTANCE.startArchiving(Paths.get(archiveDir), 7L * 24 * 60 * 60 * 1000);
+                } catch (IOException e) {
+                    System.err.println("Sales archiving is off: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A service over its own catalog, e.g. a read replica or one shard. It takes ownership of the list.
+     */
+    public PharmacyService(List<Pharmacy> pharmacies) {
+        this.pharmacies = pharmacies;
+        for (Pharmacy p : pharmacies) {
+            pharmaciesByName.putIfAbsent(p.getName(), p);
+        }
+        this.nameIndex = FuzzyMedicineIndex.build(pharmacies);
+        this.catalogIndex = CatalogBitmapIndex.build(pharmacies);
+        this.expiryTracker = ExpiryTracker.build(pharmacies);
+    }
 
     /**
-     * This method searches for medicines.
-     * If a userLocation is provided, it calculates and sorts by distance.
-     * If userLocation is null (for admin), it just returns all matching medicines.
+     * Starts retiring this catalog's expired lots every hour. Replicas don't call this: they get the retirements from their primary.
+     */
+    public void startExpirySweeper() {
+        maintenance.scheduleAtFixedRate(this::retireExpiredLots, 0, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Starts moving sales older than keepHotMillis out of memory into a ColumnarSalesArchive in 'directory', once a day
+     * (and once now). After that, getPurchaseHistory() and the other history queries only see the sales still in memory.
+     */
+    public void startArchiving(Path directory, long keepHotMillis) throws IOException {
+        ColumnarSalesArchive archive = new ColumnarSalesArchive(directory);
+        synchronized (this) {
+            this.salesArchive = archive;
+            this.keepHotMillis = keepHotMillis;
+        }
+        maintenance.scheduleAtFixedRate(() -> {
+            try {
+                rollHistoryToArchive();
+            } catch (IOException e) {
+                // The segments stay in memory and the next run tries again.
+                System.err.println("Could not archive sales history: " + e.getMessage());
+            }
+        }, 0, 1, TimeUnit.DAYS);
+    }
+
+    /**
+     * Writes every closed history segment older than the hot period to the archive, then drops it from memory.
+     * A segment is only dropped after its file is safely written.
+     * @return the number of sales archived.
+     */
+    public int rollHistoryToArchive() throws IOException {
+        ColumnarSalesArchive archive;
+        long cutoff;
+        synchronized (this) {
+            if (salesArchive == null) {
+                return 0;
+            }
+            archive = salesArchive;
+            cutoff = System.currentTimeMillis() - keepHotMillis;
+        }
+        int archived = 0;
+        for (Map.Entry<Long, List<PurchaseRecord>> segment : salesHistory.closedSegments(cutoff).entrySet()) {
+            archive.write(segment.getKey(), segment.getValue());
+            salesHistory.dropSegment(segment.getKey(), segment.getValue().size());
+            archived += segment.getValue().size();
+        }
+        return archived;
+    }
+
+    /**
+     * The archive of older sales, or null if archiving hasn't been started.
+     */
+    public synchronized ColumnarSalesArchive getSalesArchive() {
+        return salesArchive;
+    }
+
+    public void addInventoryListener(InventoryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * This method searches for medicines, tolerating typos and generic names (see FuzzyMedicineIndex).
+     * A term that appears in a pharmacy's name also lists everything that pharmacy has in stock, as an exact match.
+     * Results are ranked by how well the name matches, and then by distance if a userLocation is provided.
+     * If userLocation is null (for admin), equally good matches keep their inventory order.
+     * Repeated searches are answered from SearchResultCache until one of the matched medicines changes.
      */
     public List<SearchResult> searchMedicine(String searchTerm, Location userLocation) {
+        String term = searchTerm == null ? "" : searchTerm.trim();
+        String cacheKey = SearchResultCache.key(term, userLocation);
+        List<SearchResult> cached = searchCache.get(cacheKey);
+        if (cached != null) {
+            return new ArrayList<>(cached); // A copy, so callers can't change what the next buyer sees.
+        }
+        SearchResultCache.Stamp stamp = searchCache.stamp();
+        // An empty search matches everything, so I only ask the index when there's something to match.
+        Map<String, Integer> matchScores = term.isEmpty() ? null : nameIndex.match(term);
+        Set<String> pharmacyMatches = term.isEmpty() ? Collections.emptySet() : pharmaciesNamed(term);
+        // A pharmacy match depends on all of that pharmacy's medicines, so then I keep the stamp that covers everything.
+        if (matchScores != null && pharmacyMatches.isEmpty()) {
+            stamp = searchCache.narrow(stamp, matchScores.keySet());
+        }
         List<SearchResult> results = new ArrayList<>();
-        for (Pharmacy pharmacy : pharmacies) {
-            for (Medicine medicine : pharmacy.getInventory()) {
-                boolean matches = searchTerm == null || searchTerm.trim().isEmpty() ||
-                                  medicine.getName().toLowerCase().contains(searchTerm.trim().toLowerCase());
+        stockLock.readLock().lock();
+        try {
+            for (Pharmacy pharmacy : pharmacies) {
+                double distance = Double.NaN; // I compute this once per pharmacy, and only if it has a match.
+                boolean wholePharmacy = matchScores == null || pharmacyMatches.contains(pharmacy.getName());
+                for (Medicine medicine : pharmacy.getInventory()) {
+                    Integer score = wholePharmacy ? Integer.valueOf(0) : matchScores.get(medicine.getName());
+                    if (score != null && medicine.getStock() > 0) {
+                        if (Double.isNaN(distance)) {
+                            distance = (userLocation != null) ?
+                                DistanceCalculator.calculate(userLocation.getLatitude(), userLocation.getLongitude(),
+                                pharmacy.getLocation().getLatitude(), pharmacy.getLocation().getLongitude()) : -1.0;
+                        }
+                        results.add(new SearchResult(pharmacy.getId(), pharmacy.getName(), medicine, distance, score));
+                    }
+                }
+            }
+        } finally {
+            stockLock.readLock().unlock();
+        }
+        // The sort is stable, so for the admin (all distances -1) this only reorders by match quality.
+        results.sort(Comparator.comparingInt(SearchResult::getMatchScore).thenComparingDouble(SearchResult::getDistance));
+        searchCache.put(cacheKey, results, stamp);
+        return results;
+    }
 
-                if (matches && medicine.getStock() > 0) {
-                    double distance = (userLocation != null) ? 
-                        DistanceCalculator.calculate(userLocation.getLatitude(), userLocation.getLongitude(),
-                        pharmacy.getLocation().getLatitude(), pharmacy.getLocation().getLongitude()) : -1.0;
-                    results.add(new SearchResult(pharmacy.getId(), pharmacy.getName(), medicine, distance));
+    // The pharmacies whose name contains the term, ignoring case, as the buyer's search box has always allowed.
+    private Set<String> pharmaciesNamed(String term) {
+        String needle = term.toLowerCase();
+        Set<String> found = new HashSet<>();
+        stockLock.readLock().lock();
+        try {
+            for (Pharmacy pharmacy : pharmacies) {
+                if (pharmacy.getName().toLowerCase().contains(needle)) {
+                    found.add(pharmacy.getName());
                 }
             }
+        } finally {
+            stockLock.readLock().unlock();
         }
-        // I only sort by distance if it's a buyer (who has a location).
-        if (userLocation != null) {
-            results.sort(Comparator.comparingDouble(SearchResult::getDistance));
+        return found;
+    }
+
+    /**
+     * Same as searchMedicine, but also applies the buyer's category, supplier and distance filters.
+     * With any filter set, the whole query is answered from CatalogBitmapIndex: the term's matches and the filters are
+     * ANDed as bitmaps first, and results are only built for the entries that are left.
+     */
+    public List<SearchResult> searchMedicine(String searchTerm, Location userLocation, FacetFilter filter) {
+        if (filter.isEmpty()) {
+            return searchMedicine(searchTerm, userLocation);
         }
+        String term = searchTerm == null ? "" : searchTerm.trim();
+        Map<String, Integer> matchScores = term.isEmpty() ? null : nameIndex.match(term);
+        Set<String> pharmacyMatches = term.isEmpty() ? Collections.<String>emptySet() : pharmaciesNamed(term);
+        List<SearchResult> results = catalogIndex.search(matchScores, pharmacyMatches, filter, userLocation);
+        results.sort(Comparator.comparingInt(SearchResult::getMatchScore).thenComparingDouble(SearchResult::getDistance));
         return results;
     }
 
+    /**
+     * Picks, for each medicine name in the results, the nearest pharmacy that has it in stock.
+     * It's a single pass over the results, so a table can then ask "is this row the closest source of its medicine?" in O(1).
+     */
+    public static Map<String, SearchResult> nearestInStock(List<SearchResult> results) {
+        Map<String, SearchResult> nearest = new HashMap<>();
+        for (SearchResult r : results) {
+            if (r.getMedicine().getStock() <= 0) {
+                continue;
+            }
+            SearchResult best = nearest.get(r.getMedicine().getName());
+            if (best == null || r.getDistance() < best.getDistance()) {
+                nearest.put(r.getMedicine().getName(), r);
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * This method returns how many in-stock entries each category and supplier has, for the current search and filters.
+     */
+    public FacetCounts getFacetCounts(String searchTerm, Location userLocation, FacetFilter filter) {
+        String term = searchTerm == null ? "" : searchTerm.trim();
+        if (term.isEmpty()) {
+            return catalogIndex.facetCounts(null, null, filter, userLocation);
+        }
+        return catalogIndex.facetCounts(nameIndex.match(term).keySet(), pharmaciesNamed(term), filter, userLocation);
+    }
+
     /**
      * This method handles the logic for a user buying a medicine.
      * It reduces the stock and creates a sales record.
      */
     public boolean buyMedicine(User user, String pharmacyName, String medicineName, int quantity) {
-        Medicine med = getMedicineDetails(pharmacyName, medicineName);
-        if (med != null && med.getStock() >= quantity) {
-            med.setStock(med.getStock() - quantity);
-            // I log the purchase to our history list.
-            purchaseHistory.add(new PurchaseRecord(user.getName(), medicineName, quantity, quantity * med.getPrice(), pharmacyName));
+        stockLock.writeLock().lock();
+        try {
+            Medicine med = getMedicineDetails(pharmacyName, medicineName);
+            if (med != null) {
+                // A lot may have expired since the last sweep; it must not be sold.
+                retireExpired(med, LocalDate.now());
+            }
+            if (med != null && med.getStock() >= quantity) {
+                recordSale(user, med, quantity);
+                return true;
+            }
+            return false;
+        } finally {
+            stockLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method plans how to buy more units than one pharmacy holds, using the nearest pharmacies that stock it.
+     */
+    public FulfilmentPlan planFulfilment(String medicineName, int quantity, Location userLocation) {
+        return fulfilmentPlanner.plan(medicineName, quantity, searchMedicine(medicineName, userLocation));
+    }
+
+    /**
+     * This method applies a whole plan or nothing: if any pharmacy no longer has the planned stock at the planned price,
+     * no stock is taken anywhere and it returns false.
+     */
+    public boolean commitPlan(User user, FulfilmentPlan plan) {
+        stockLock.writeLock().lock();
+        try {
+            List<Medicine> sources = new ArrayList<>();
+            for (FulfilmentPlan.Allocation a : plan.getAllocations()) {
+                Medicine med = getMedicineDetails(a.getPharmacyName(), plan.getMedicineName());
+                if (med != null) {
+                    retireExpired(med, LocalDate.now());
+                }
+                if (med == null || med.getStock() < a.getQuantity() || med.getPricePaisa() != a.getUnitPricePaisa()) {
+                    return false;
+                }
+                sources.add(med);
+            }
+            for (int i = 0; i < sources.size(); i++) {
+                recordSale(user, sources.get(i), plan.getAllocations().get(i).getQuantity());
+            }
             return true;
+        } finally {
+            stockLock.writeLock().unlock();
         }
-        return false;
+    }
+
+    // The caller must hold stockLock's write lock.
+    private void recordSale(User user, Medicine med, int quantity) {
+        med.dispense(quantity); // First-expiry-first-out, see Medicine.
+        // I log the purchase to our history list.
+        salesHistory.add(new PurchaseRecord(user.getName(), med.getName(), quantity, Money.times(med.getPricePaisa(), quantity), med.getPharmacyName()));
+        reorderEngine.recordSale(med.getPharmacyName(), med.getName(), quantity, med.getStock(), System.currentTimeMillis());
+        catalogIndex.stockChanged(med);
+        searchCache.medicineChanged(med.getName());
+        notifyChanged(med);
     }
     
+    /**
+     * This method retires every lot that has expired, across all pharmacies. It runs on the expiry-sweeper thread,
+     * and only touches the lots that have actually expired (see ExpiryTracker).
+     * @return the number of units retired.
+     */
+    public int retireExpiredLots() {
+        int retired = 0;
+        stockLock.writeLock().lock();
+        try {
+            for (StockLot lot : expiryTracker.pollExpired(LocalDate.now())) {
+                int units = lot.getMedicine().retireLot(lot);
+                if (units > 0) {
+                    stockChanged(lot.getMedicine());
+                    retired += units;
+                }
+            }
+        } finally {
+            stockLock.writeLock().unlock();
+        }
+        return retired;
+    }
+
+    /**
+     * This method returns the lots that expire within the given number of days, soonest first.
+     */
+    public List<StockLot> getLotsExpiringWithin(int days) {
+        stockLock.readLock().lock();
+        try {
+            return expiryTracker.expiringBy(LocalDate.now().plusDays(days));
+        } finally {
+            stockLock.readLock().unlock();
+        }
+    }
+
+    // The caller must hold stockLock's write lock.
+    private void retireExpired(Medicine med, LocalDate today) {
+        if (med.retireExpired(today) > 0) {
+            stockChanged(med);
+        }
+    }
+
+    // Tells every index that a medicine's stock changed outside of a sale. The caller must hold stockLock's write lock.
+    private void stockChanged(Medicine med) {
+        reorderEngine.updateStock(med.getPharmacyName(), med.getName(), med.getStock());
+        catalogIndex.stockChanged(med);
+        searchCache.medicineChanged(med.getName());
+        notifyChanged(med);
+    }
+
+    // The caller must hold stockLock's write lock, so listeners see the changes in the order they happened.
+    private void notifyChanged(Medicine med) {
+        if (!listeners.isEmpty()) {
+            Pharmacy pharmacy = pharmaciesByName.get(med.getPharmacyName());
+            for (InventoryListener listener : listeners) {
+                listener.medicineChanged(pharmacy, med);
+            }
+        }
+    }
+
     /**
      * A helper method to find a specific medicine in a specific pharmacy.
      */
     public Medicine getMedicineDetails(String pharmacyName, String medicineName) {
-        for (Pharmacy p : pharmacies) {
-            if (p.getName().equals(pharmacyName)) {
+        stockLock.readLock().lock();
+        try {
+            Pharmacy p = pharmaciesByName.get(pharmacyName);
+            if (p != null) {
                 for (Medicine m : p.getInventory()) {
                     if (m.getName().equals(medicineName)) {
                         return m;
                     }
                 }
             }
+            return null;
+        } finally {
+            stockLock.readLock().unlock();
         }
-        return null;
     }
     
     /**
      * This method adds a new medicine to a pharmacy's inventory.
      */
     public void addMedicine(Medicine newMedicine) {
-        for (Pharmacy p : pharmacies) {
-            if (p.getName().equals(newMedicine.getPharmacyName())) {
+        stockLock.writeLock().lock();
+        try {
+            Pharmacy p = pharmaciesByName.get(newMedicine.getPharmacyName());
+            if (p != null) {
                 // To prevent duplicates, a real app would check if the medicine already exists.
                 // For simplicity, I just add it.
                 p.addMedicine(newMedicine);
-                return;
+                catalogIndex.add(newMedicine);
+                expiryTracker.trackAll(newMedicine);
+                if (nameIndex.addName(newMedicine.getName())) {
+                    searchCache.nameAdded(newMedicine.getName());
+                } else {
+                    searchCache.medicineChanged(newMedicine.getName());
+                }
+                notifyChanged(newMedicine);
             }
+        } finally {
+            stockLock.writeLock().unlock();
         }
     }
 
     /**
      * This method updates the details of an existing medicine.
+     * A negative stock is rejected before anything is changed, so a bad edit never leaves the medicine half-updated.
      */
     public void updateMedicine(Medicine updatedMedicine) {
-        Medicine toUpdate = getMedicineDetails(updatedMedicine.getPharmacyName(), updatedMedicine.getName());
-        if (toUpdate != null) {
-            toUpdate.setCategory(updatedMedicine.getCategory());
-            toUpdate.setSupplier(updatedMedicine.getSupplier());
-            toUpdate.setPrice(updatedMedicine.getPrice());
-            toUpdate.setStock(updatedMedicine.getStock());
+        if (updatedMedicine.getStock() < 0) {
+            throw new IllegalArgumentException("Stock of " + updatedMedicine.getName() + " cannot be negative");
+        }
+        stockLock.writeLock().lock();
+        try {
+            Medicine toUpdate = getMedicineDetails(updatedMedicine.getPharmacyName(), updatedMedicine.getName());
+            if (toUpdate != null) {
+                toUpdate.setCategory(updatedMedicine.getCategory());
+                toUpdate.setSupplier(updatedMedicine.getSupplier());
+                toUpdate.setPricePaisa(updatedMedicine.getPricePaisa());
+                // Extra stock arrives as a new lot (with the expiry entered on the form); less stock is taken out FEFO.
+                int change = updatedMedicine.getStock() - toUpdate.getStock();
+                if (change > 0) {
+                    expiryTracker.track(toUpdate.receiveLot(change, updatedMedicine.getEarliestExpiry()));
+                } else if (change < 0) {
+                    toUpdate.dispense(-change);
+                }
+                reorderEngine.updateStock(toUpdate.getPharmacyName(), toUpdate.getName(), toUpdate.getStock());
+                catalogIndex.update(toUpdate);
+                searchCache.medicineChanged(toUpdate.getName());
+                notifyChanged(toUpdate);
+            }
+        } finally {
+            stockLock.writeLock().unlock();
         }
     }
 
@@ -856,60 +1584,2660 @@ class PharmacyService {
      * This method removes a medicine from a pharmacy's inventory.
      */
     public void deleteMedicine(String pharmacyName, String medicineName) {
-        for (Pharmacy p : pharmacies) {
-            if (p.getName().equals(pharmacyName)) {
-                // I use removeIf, which is a clean way to remove an item from a list based on a condition.
-                p.getInventory().removeIf(med -> med.getName().equals(medicineName));
-                return;
+        stockLock.writeLock().lock();
+        try {
+            Pharmacy p = pharmaciesByName.get(pharmacyName);
+            if (p != null) {
+                // I use an Iterator so I can drop each removed medicine from the bitmap index as I go.
+                for (Iterator<Medicine> it = p.getInventory().iterator(); it.hasNext(); ) {
+                    Medicine med = it.next();
+                    if (med.getName().equals(medicineName)) {
+                        it.remove();
+                        catalogIndex.remove(med);
+                        expiryTracker.untrackAll(med);
+                    }
+                }
+                reorderEngine.remove(pharmacyName, medicineName);
+                searchCache.medicineChanged(medicineName);
+                for (InventoryListener listener : listeners) {
+                    listener.medicineRemoved(p, medicineName);
+                }
             }
+        } finally {
+            stockLock.writeLock().unlock();
         }
     }
 
     /**
-     * This method returns the entire sales history.
+     * This method returns the search cache's hit and miss counts, to check that it's actually earning its memory.
      */
-    public static List<PurchaseRecord> getPurchaseHistory() {
-        return purchaseHistory;
+    public SearchCacheStats getSearchCacheStats() {
+        return searchCache.getStats();
     }
-}
 
-class DataService {
-    private static List<Pharmacy> pharmacyCache = null;
+    /**
+     * This method returns the medicines predicted to run out soonest, based on recent sales velocity.
+     */
+    public List<ReorderSuggestion> getReorderSuggestions(int limit) {
+        return reorderEngine.getReorderList(limit, System.currentTimeMillis());
+    }
 
-    public static List<Pharmacy> getPharmacies() {
-        // I use a cache (a stored copy) so that the data is created only once.
-        // This makes our data persistent for the app's session (stock updates are remembered).
-        if (pharmacyCache == null) {
-            pharmacyCache = new ArrayList<>();
-        
-            Pharmacy p1 = new Pharmacy("p1", "Lazz Pharma (Uttara)", new Location(23.8737, 90.3965));
-            p1.addMedicine(new Medicine("Napa Extend", "Painkiller", "Beximco", 6.00, 200, p1.getName()));
-            p1.addMedicine(new Medicine("Fexo 120", "Antihistamine", "Square", 8.00, 150, p1.getName()));
-            p1.addMedicine(new Medicine("Monas 10", "Asthma", "Acme", 12.50, 90, p1.getName()));
-            pharmacyCache.add(p1);
-
-            Pharmacy p2 = new Pharmacy("p2", "Medex Pharmacy (Gulshan)", new Location(23.7949, 90.4143));
-            p2.addMedicine(new Medicine("Seclo 20", "Antacid", "Square", 7.00, 300, p2.getName()));
-            p2.addMedicine(new Medicine("Ceevit", "Vitamin", "GSK", 3.00, 500, p2.getName()));
-            p2.addMedicine(new Medicine("Napa Extend", "Painkiller", "Beximco", 6.10, 180, p2.getName()));
-            pharmacyCache.add(p2);
-            
-            Pharmacy p3 = new Pharmacy("p3", "Health Hub (Dhanmondi)", new Location(23.7465, 90.3765));
-            p3.addMedicine(new Medicine("Tufnil", "Painkiller", "Opsonin", 5.00, 120, p3.getName()));
-            p3.addMedicine(new Medicine("Azithromycin 500", "Antibiotic", "Beximco", 35.00, 80, p3.getName()));
-            p3.addMedicine(new Medicine("Finix 20", "Antacid", "Opsonin", 7.50, 220, p3.getName()));
-            pharmacyCache.add(p3);
-
-            Pharmacy p4 = new Pharmacy("p4", "Mirpur City Pharma", new Location(23.8059, 90.3493));
-            p4.addMedicine(new Medicine("Napa Extend", "Painkiller", "Beximco", 5.90, 250, p4.getName()));
-            p4.addMedicine(new Medicine("Seclo 20", "Antacid", "Square", 7.10, 180, p4.getName()));
-            p4.addMedicine(new Medicine("Fexo 120", "Antihistamine", "Square", 8.25, 130, p4.getName()));
-            pharmacyCache.add(p4);
-        }
-        return pharmacyCache;
+    /**
+     * This method returns the sales history still in memory: all of it, unless archiving has been started,
+     * in which case the older sales are in getSalesArchive() instead.
+     */
+    public List<PurchaseRecord> getPurchaseHistory() {
+        return salesHistory.all();
     }
 
-    public static Map<String, Location> getPredefinedLocations() {
+    /**
+     * Revenue (paisa) of the sales already moved to the archive, which getPurchaseHistory() no longer returns.
+     * Returns -1 if archiving hasn't been started.
+     */
+    public long getArchivedRevenuePaisa() throws IOException {
+        ColumnarSalesArchive archive = getSalesArchive();
+        return archive == null ? -1 : archive.totalRevenue(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * This method returns one pharmacy's sales with fromMillis <= timestamp < toMillis, e.g. the last 24 hours.
+     */
+    public List<PurchaseRecord> getSalesForPharmacy(String pharmacyName, long fromMillis, long toMillis) {
+        return salesHistory.forPharmacy(pharmacyName, fromMillis, toMillis);
+    }
+
+    /**
+     * This method returns everything a customer has bought, oldest first.
+     */
+    public List<PurchaseRecord> getPurchasesByCustomer(String customerName) {
+        return salesHistory.forCustomer(customerName, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * This method returns all sales with fromMillis <= timestamp < toMillis.
+     */
+    public List<PurchaseRecord> getSalesBetween(long fromMillis, long toMillis) {
+        return salesHistory.between(fromMillis, toMillis);
+    }
+
+    /**
+     * Adds a pharmacy to this catalog (a replica learns about pharmacies as their first changes arrive).
+     * Returns the existing pharmacy if one with that name is already here.
+     */
+    public Pharmacy addPharmacy(Pharmacy pharmacy) {
+        stockLock.writeLock().lock();
+        try {
+            Pharmacy existing = pharmaciesByName.putIfAbsent(pharmacy.getName(), pharmacy);
+            if (existing != null) {
+                return existing;
+            }
+            pharmacies.add(pharmacy);
+            catalogIndex.addPharmacy(pharmacy);
+            for (Medicine m : pharmacy.getInventory()) {
+                catalogIndex.add(m);
+                expiryTracker.trackAll(m);
+                nameIndex.addName(m.getName());
+            }
+            searchCache.catalogChanged();
+            return pharmacy;
+        } finally {
+            stockLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes a pharmacy and its whole inventory out of this catalog, e.g. to move it to another shard.
+     * Its sales velocities stay behind, so reorder suggestions for it start afresh wherever it goes.
+     * Returns null if it isn't here.
+     */
+    public Pharmacy removePharmacy(String pharmacyName) {
+        stockLock.writeLock().lock();
+        try {
+            Pharmacy pharmacy = pharmaciesByName.remove(pharmacyName);
+            if (pharmacy == null) {
+                return null;
+            }
+            pharmacies.remove(pharmacy);
+            for (Medicine m : pharmacy.getInventory()) {
+                catalogIndex.remove(m);
+                expiryTracker.untrackAll(m);
+                reorderEngine.remove(pharmacyName, m.getName());
+                for (InventoryListener listener : listeners) {
+                    listener.medicineRemoved(pharmacy, m.getName());
+                }
+            }
+            searchCache.catalogChanged();
+            return pharmacy;
+        } finally {
+            stockLock.writeLock().unlock();
+        }
+    }
+
+    public void forEachPharmacy(Consumer<Pharmacy> visitor) {
+        stockLock.readLock().lock();
+        try {
+            for (Pharmacy p : pharmacies) {
+                visitor.accept(p);
+            }
+        } finally {
+            stockLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the visitor for every medicine while holding stockLock's read lock, so it sees one consistent state of the catalog.
+     */
+    public void forEachMedicine(BiConsumer<Pharmacy, Medicine> visitor) {
+        stockLock.readLock().lock();
+        try {
+            for (Pharmacy p : pharmacies) {
+                for (Medicine m : p.getInventory()) {
+                    visitor.accept(p, m);
+                }
+            }
+        } finally {
+            stockLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Makes a medicine match a copy received from another node: same details and the same lots.
+     * A medicine this catalog doesn't have yet is added.
+     */
+    public void applyReplicated(Pharmacy pharmacy, Medicine copy) {
+        stockLock.writeLock().lock();
+        try {
+            Medicine med = getMedicineDetails(pharmacy.getName(), copy.getName());
+            if (med == null) {
+                addMedicine(copy);
+                return;
+            }
+            med.setCategory(copy.getCategory());
+            med.setSupplier(copy.getSupplier());
+            med.setPricePaisa(copy.getPricePaisa());
+            expiryTracker.untrackAll(med); // replaceLots empties the old lots; they mustn't linger in the tracker.
+            med.replaceLots(copy.getLots());
+            expiryTracker.trackAll(med);
+            reorderEngine.updateStock(med.getPharmacyName(), med.getName(), med.getStock());
+            catalogIndex.update(med);
+            searchCache.medicineChanged(med.getName());
+            notifyChanged(med);
+        } finally {
+            stockLock.writeLock().unlock();
+        }
+    }
+}
+
+/**
+ * This engine watches sales and warns the shopkeeper before a medicine runs out.
+ * For every (pharmacy, medicine) pair it keeps an exponentially-decayed sales velocity, updated in O(1) on each purchase,
+ * and keeps all pairs ranked by predicted time to stock-out in a TreeSet, so the reorder list never needs a rescan.
+ *
+ * Why the ranking stays valid as time passes: every velocity decays by the same factor, so I store each one
+ * scaled up to the engine's start time (in log space, so it can't overflow). The ranking key
+ * log(stock) - log(scaledVelocity) then only changes when that pair itself is sold or edited.
+ */
+class ReorderEngine {
+    private static final double MILLIS_PER_DAY = 24 * 60 * 60 * 1000.0;
+    private static final double HALF_LIFE_DAYS = 7.0; // A sale from a week ago counts half as much as one today.
+    private static final double DECAY_PER_DAY = Math.log(2) / HALF_LIFE_DAYS;
+    private static final double COVER_DAYS = 30.0; // Suggested orders aim to cover this many days of sales.
+
+    private final long startMillis;
+    private final Map<String, Velocity> velocities = new HashMap<>();
+    private final TreeSet<Velocity> ranking = new TreeSet<>(
+            Comparator.comparingDouble((Velocity v) -> v.rankKey).thenComparing(v -> v.key));
+
+    public ReorderEngine() {
+        this(System.currentTimeMillis());
+    }
+
+    public ReorderEngine(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * Records a sale. This is called from buyMedicine, so it only does a hash lookup and one TreeSet re-insert.
+     */
+    public synchronized void recordSale(String pharmacyName, String medicineName, int quantity, int stockAfter, long nowMillis) {
+        String key = key(pharmacyName, medicineName);
+        Velocity v = velocities.get(key);
+        if (v == null) {
+            v = new Velocity(key, pharmacyName, medicineName);
+            velocities.put(key, v);
+        } else {
+            ranking.remove(v);
+        }
+        // Each unit sold adds DECAY_PER_DAY units/day to the rate, so a steady seller converges to its true daily rate.
+        double logContribution = Math.log(quantity * DECAY_PER_DAY) + elapsedDecay(nowMillis);
+        v.logScaledRate = logAdd(v.logScaledRate, logContribution);
+        v.stock = stockAfter;
+        v.updateRankKey();
+        ranking.add(v);
+    }
+
+    /**
+     * Called when the shopkeeper edits the stock by hand, so the ranking reflects the new level immediately.
+     */
+    public synchronized void updateStock(String pharmacyName, String medicineName, int stock) {
+        Velocity v = velocities.get(key(pharmacyName, medicineName));
+        if (v != null) {
+            ranking.remove(v);
+            v.stock = stock;
+            v.updateRankKey();
+            ranking.add(v);
+        }
+    }
+
+    public synchronized void remove(String pharmacyName, String medicineName) {
+        Velocity v = velocities.remove(key(pharmacyName, medicineName));
+        if (v != null) {
+            ranking.remove(v);
+        }
+    }
+
+    /**
+     * Returns the medicines closest to running out, soonest first. Only the first 'limit' entries of the ranking are touched.
+     */
+    public synchronized List<ReorderSuggestion> getReorderList(int limit, long nowMillis) {
+        List<ReorderSuggestion> suggestions = new ArrayList<>(Math.min(limit, ranking.size()));
+        double decay = elapsedDecay(nowMillis);
+        for (Velocity v : ranking) {
+            if (suggestions.size() >= limit) {
+                break;
+            }
+            double unitsPerDay = Math.exp(v.logScaledRate - decay);
+            double daysLeft = v.stock / unitsPerDay;
+            int suggestedOrder = (int) Math.max(0, Math.ceil(unitsPerDay * COVER_DAYS) - v.stock);
+            suggestions.add(new ReorderSuggestion(v.pharmacyName, v.medicineName, v.stock, unitsPerDay, daysLeft, suggestedOrder));
+        }
+        return suggestions;
+    }
+
+    private double elapsedDecay(long nowMillis) {
+        return DECAY_PER_DAY * (nowMillis - startMillis) / MILLIS_PER_DAY;
+    }
+
+    // log(e^a + e^b) without overflowing, where either side may be -Infinity (no sales yet).
+    private static double logAdd(double a, double b) {
+        double max = Math.max(a, b);
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
+
+    private static String key(String pharmacyName, String medicineName) {
+        return pharmacyName + '\u0000' + medicineName;
+    }
+
+    private static class Velocity {
+        final String key, pharmacyName, medicineName;
+        double logScaledRate = Double.NEGATIVE_INFINITY;
+        int stock;
+        double rankKey;
+
+        Velocity(String key, String pharmacyName, String medicineName) {
+            this.key = key; this.pharmacyName = pharmacyName; this.medicineName = medicineName;
+        }
+
+        // An empty shelf gets log(0) = -Infinity, which puts it at the very top of the list.
+        void updateRankKey() {
+            rankKey = Math.log(stock) - logScaledRate;
+        }
+    }
+}
+
+/**
+ * This planner splits an order that is too big for one pharmacy across several nearby ones.
+ * It first keeps only the k nearest pharmacies that stock the medicine (a bounded max-heap, so O(n log k) for n results),
+ * then tries every combination of those k and picks the cheapest one that covers the quantity.
+ * "Cheapest" means the medicine's price plus a travel cost for every extra km, so the planner balances distance against price.
+ */
+class FulfilmentPlanner {
+    static final int DEFAULT_MAX_SOURCES = 5;
+    static final long DEFAULT_TRAVEL_PAISA_PER_KM = Money.ofTaka(20.00); // Roughly a rickshaw fare per km in Dhaka.
+    private static final int MAX_SOURCES_LIMIT = 12; // 2^12 combinations is the most I'm willing to enumerate.
+
+    private final int maxSources;
+    private final long travelPaisaPerKm;
+
+    public FulfilmentPlanner() {
+        this(DEFAULT_MAX_SOURCES, DEFAULT_TRAVEL_PAISA_PER_KM);
+    }
+
+    public FulfilmentPlanner(int maxSources, long travelPaisaPerKm) {
+        if (maxSources < 1 || maxSources > MAX_SOURCES_LIMIT) {
+            throw new IllegalArgumentException("maxSources must be between 1 and " + MAX_SOURCES_LIMIT);
+        }
+        this.maxSources = maxSources;
+        this.travelPaisaPerKm = travelPaisaPerKm;
+    }
+
+    /**
+     * Plans an order from the given search results. Results for other medicines or with no stock are ignored.
+     * If even the k nearest pharmacies together can't cover the quantity, the plan takes everything they have
+     * and isComplete() returns false.
+     */
+    public FulfilmentPlan plan(String medicineName, int quantity, List<SearchResult> results) {
+        // Step 1: keep the k nearest sources. The heap's head is the farthest one kept, so it's the one to drop.
+        PriorityQueue<SearchResult> nearest = new PriorityQueue<>(Comparator.comparingDouble(SearchResult::getDistance).reversed());
+        for (SearchResult r : results) {
+            if (r.getMedicine().getName().equals(medicineName) && r.getMedicine().getStock() > 0) {
+                nearest.add(r);
+                if (nearest.size() > maxSources) {
+                    nearest.poll();
+                }
+            }
+        }
+        // I sort the sources by price so that filling a combination is a single greedy pass (cheapest units first).
+        SearchResult[] sources = nearest.toArray(new SearchResult[0]);
+        Arrays.sort(sources, Comparator.comparingLong((SearchResult r) -> r.getMedicine().getPricePaisa())
+                .thenComparingDouble(SearchResult::getDistance));
+        // I read the stock once, so every combination is judged against the same numbers.
+        int[] stock = new int[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            stock[i] = sources[i].getMedicine().getStock();
+        }
+
+        // Step 2: try every combination of sources and keep the cheapest one that covers the whole quantity.
+        int allSources = (1 << sources.length) - 1;
+        int bestMask = allSources;
+        long bestCost = Long.MAX_VALUE;
+        for (int mask = 1; mask <= allSources; mask++) {
+            long cost = 0;
+            int remaining = quantity;
+            boolean wasteful = false;
+            for (int i = 0; i < sources.length && cost < bestCost; i++) {
+                if ((mask & (1 << i)) == 0) {
+                    continue;
+                }
+                if (remaining == 0) {
+                    wasteful = true; // A smaller combination already covers it without this trip.
+                    break;
+                }
+                int take = Math.min(remaining, stock[i]);
+                cost += travelCost(sources[i]) + Money.times(sources[i].getMedicine().getPricePaisa(), take);
+                remaining -= take;
+            }
+            if (!wasteful && remaining == 0 && cost < bestCost) {
+                bestCost = cost;
+                bestMask = mask;
+            }
+        }
+
+        List<FulfilmentPlan.Allocation> allocations = new ArrayList<>();
+        int remaining = quantity;
+        for (int i = 0; i < sources.length && remaining > 0; i++) {
+            if ((bestMask & (1 << i)) != 0) {
+                int take = Math.min(remaining, stock[i]);
+                allocations.add(new FulfilmentPlan.Allocation(sources[i].getPharmacyName(), take,
+                        sources[i].getMedicine().getPricePaisa(), sources[i].getDistance()));
+                remaining -= take;
+            }
+        }
+        // The buyer reads the plan in travel order, nearest pharmacy first.
+        allocations.sort(Comparator.comparingDouble(FulfilmentPlan.Allocation::getDistance));
+        return new FulfilmentPlan(medicineName, quantity, allocations);
+    }
+
+    private long travelCost(SearchResult source) {
+        // Admin searches have no location (distance -1), so they simply pay no travel cost.
+        return Math.round(Math.max(0, source.getDistance()) * travelPaisaPerKm);
+    }
+}
+
+/**
+ * This index makes medicine search forgiving of typos ("azithromicin"), half-typed words ("napa ext")
+ * and generic names ("paracetamol" finds Napa).
+ * It works on words: every medicine name is split into lowercase tokens, and a query matches a name when every query
+ * token matches one of the name's tokens. A token matches when it's within a small edit distance of the whole token or its start.
+ *
+ * To find close tokens without comparing against all of them, I use the symmetric-delete trick: at index time I store every
+ * way of deleting up to MAX_EDITS characters from the start of each token. At query time I generate the same deletes for
+ * the query token, and any shared delete is a candidate that I then check with a real edit-distance calculation.
+ */
+class FuzzyMedicineIndex {
+    private static final int MAX_EDITS = 2;
+    private static final int PREFIX_LENGTH = 7; // Only the first 7 letters are indexed, which bounds the number of deletes per token.
+    private static final int SYNONYM_PENALTY = 1; // A generic-name match ranks just below a direct match on the brand name.
+
+    // Brand-name first words mapped to their generic names, so a buyer who only knows the generic still finds the brand.
+    private static final Map<String, String[]> GENERIC_NAMES = new HashMap<>();
+    static {
+        GENERIC_NAMES.put("napa", new String[]{"paracetamol", "acetaminophen"});
+        GENERIC_NAMES.put("fexo", new String[]{"fexofenadine"});
+        GENERIC_NAMES.put("monas", new String[]{"montelukast"});
+        GENERIC_NAMES.put("seclo", new String[]{"omeprazole"});
+        GENERIC_NAMES.put("ceevit", new String[]{"ascorbic", "vitamin"});
+        GENERIC_NAMES.put("tufnil", new String[]{"tolfenamic"});
+        GENERIC_NAMES.put("finix", new String[]{"rabeprazole"});
+    }
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    // Each name's tokens. Generic-name tokens are stored as negative (-id - 1) so I know to charge SYNONYM_PENALTY.
+    private final List<int[]> nameTokens = new ArrayList<>();
+    private final Map<String, Integer> tokenIds = new HashMap<>();
+    private final List<String> tokens = new ArrayList<>();
+    // For each token, the ids of the names that contain it (directly or as a generic name).
+    private final List<List<Integer>> postings = new ArrayList<>();
+    private final Map<String, List<Integer>> deletes = new HashMap<>();
+    // The same tokens in sorted order, which lets me find every token that starts with a short query in O(log n).
+    private final TreeMap<String, Integer> sortedTokens = new TreeMap<>();
+
+    public static FuzzyMedicineIndex build(List<Pharmacy> pharmacies) {
+        FuzzyMedicineIndex index = new FuzzyMedicineIndex();
+        for (Pharmacy p : pharmacies) {
+            for (Medicine m : p.getInventory()) {
+                index.addName(m.getName());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Adds a medicine name to the index. Adding a name that's already there does nothing.
+     * @return true if the name was new.
+     */
+    public synchronized boolean addName(String name) {
+        if (nameIds.containsKey(name)) {
+            return false;
+        }
+        int nameId = names.size();
+        nameIds.put(name, nameId);
+        names.add(name);
+        List<String> words = tokenize(name);
+        String[] generics = words.isEmpty() ? null : GENERIC_NAMES.get(words.get(0));
+        int[] ids = new int[words.size() + (generics == null ? 0 : generics.length)];
+        int n = 0;
+        for (String word : words) {
+            ids[n++] = addPosting(word, nameId);
+        }
+        if (generics != null) {
+            for (String generic : generics) {
+                ids[n++] = -addPosting(generic, nameId) - 1;
+            }
+        }
+        nameTokens.add(ids);
+        return true;
+    }
+
+    /**
+     * Returns every indexed name that matches the query, mapped to a score where lower is a better match (0 = exact words).
+     */
+    public synchronized Map<String, Integer> match(String query) {
+        List<String> queryTokens = tokenize(query);
+        Map<String, Integer> result = new HashMap<>();
+        if (queryTokens.isEmpty()) {
+            return result;
+        }
+        // For each query word, the handful of indexed words it's close to, and at what cost.
+        List<Map<Integer, Integer>> tokenCosts = new ArrayList<>(queryTokens.size());
+        int rarest = 0;
+        long rarestPostings = Long.MAX_VALUE;
+        for (int q = 0; q < queryTokens.size(); q++) {
+            Map<Integer, Integer> costs = matchingTokens(queryTokens.get(q));
+            if (costs.isEmpty()) {
+                return result; // One word matches nothing, so no name can match all of them.
+            }
+            long postingCount = 0;
+            for (int tokenId : costs.keySet()) {
+                postingCount += postings.get(tokenId).size();
+            }
+            if (postingCount < rarestPostings) {
+                rarest = q;
+                rarestPostings = postingCount;
+            }
+            tokenCosts.add(costs);
+        }
+
+        // I only expand the postings of the rarest query word. Every other word is checked against the
+        // few tokens of each candidate name, so a common word like "extend" never gets expanded at all.
+        Set<Integer> candidates = new HashSet<>();
+        for (int tokenId : tokenCosts.get(rarest).keySet()) {
+            candidates.addAll(postings.get(tokenId));
+        }
+        for (int nameId : candidates) {
+            int total = 0;
+            for (Map<Integer, Integer> costs : tokenCosts) {
+                int best = bestCost(nameTokens.get(nameId), costs);
+                if (best == Integer.MAX_VALUE) {
+                    total = -1;
+                    break;
+                }
+                total += best;
+            }
+            if (total >= 0) {
+                result.put(names.get(nameId), total);
+            }
+        }
+        return result;
+    }
+
+    // The cheapest way one of the name's tokens matches a query word, or MAX_VALUE if none do.
+    private static int bestCost(int[] tokensOfName, Map<Integer, Integer> costs) {
+        int best = Integer.MAX_VALUE;
+        for (int id : tokensOfName) {
+            Integer cost = costs.get(id >= 0 ? id : -id - 1);
+            if (cost != null) {
+                best = Math.min(best, id >= 0 ? cost : cost + SYNONYM_PENALTY);
+            }
+        }
+        return best;
+    }
+
+    // The indexed tokens that match one query word, each with its cost.
+    private Map<Integer, Integer> matchingTokens(String queryToken) {
+        Map<Integer, Integer> costs = new HashMap<>();
+        int allowed = allowedEdits(queryToken);
+
+        // Exact prefixes first: "azi" should find "azithromycin" even though that's far more than 2 edits away.
+        for (int tokenId : sortedTokens.subMap(queryToken, queryToken + Character.MAX_VALUE).values()) {
+            costs.put(tokenId, tokens.get(tokenId).length() == queryToken.length() ? 0 : 1);
+        }
+        if (allowed == 0) {
+            return costs;
+        }
+        // Then typo candidates from the symmetric-delete table, each checked with a real edit distance.
+        String queryPrefix = queryToken.length() > PREFIX_LENGTH ? queryToken.substring(0, PREFIX_LENGTH) : queryToken;
+        Set<Integer> checked = new HashSet<>();
+        for (String delete : deletesOf(queryPrefix, allowed)) {
+            List<Integer> ids = deletes.get(delete);
+            if (ids == null) {
+                continue;
+            }
+            for (int tokenId : ids) {
+                String token = tokens.get(tokenId);
+                // Too short to be within reach, or already scored: skip before paying for an edit distance.
+                if (token.length() < queryToken.length() - allowed || costs.containsKey(tokenId) || !checked.add(tokenId)) {
+                    continue;
+                }
+                int[] row = distanceRow(queryToken, token, allowed);
+                if (row == null) {
+                    continue;
+                }
+                // The last row holds the distance to every prefix of the token, so one pass gives both kinds of match.
+                int whole = row[token.length()];
+                int prefix = whole;
+                for (int j = 1; j < token.length(); j++) {
+                    prefix = Math.min(prefix, row[j]);
+                }
+                // A typo costs 2 per edit, and matching only the start of a longer word costs 1 more.
+                if (prefix <= allowed) {
+                    costs.put(tokenId, Math.min(whole * 2, prefix * 2 + 1));
+                }
+            }
+        }
+        return costs;
+    }
+
+    private int addPosting(String token, int nameId) {
+        Integer tokenId = tokenIds.get(token);
+        if (tokenId == null) {
+            tokenId = tokens.size();
+            tokenIds.put(token, tokenId);
+            tokens.add(token);
+            postings.add(new ArrayList<>(1));
+            sortedTokens.put(token, tokenId);
+            String prefix = token.length() > PREFIX_LENGTH ? token.substring(0, PREFIX_LENGTH) : token;
+            for (String delete : deletesOf(prefix, MAX_EDITS)) {
+                deletes.computeIfAbsent(delete, k -> new ArrayList<>(1)).add(tokenId);
+            }
+        }
+        List<Integer> list = postings.get(tokenId);
+        // Names are added with increasing ids, so a repeated word in the same name is always the last entry.
+        if (list.isEmpty() || list.get(list.size() - 1) != nameId) {
+            list.add(nameId);
+        }
+        return tokenId;
+    }
+
+    // Short words get fewer edits, otherwise "napa" would match half the catalog.
+    private static int allowedEdits(String token) {
+        return token.length() <= 3 ? 0 : token.length() <= 5 ? 1 : MAX_EDITS;
+    }
+
+    // The word itself plus every string made by deleting up to maxDeletes characters from it.
+    private static Set<String> deletesOf(String word, int maxDeletes) {
+        Set<String> result = new HashSet<>();
+        result.add(word);
+        List<String> frontier = Collections.singletonList(word);
+        for (int d = 0; d < maxDeletes; d++) {
+            List<String> next = new ArrayList<>();
+            for (String w : frontier) {
+                for (int i = 0; i < w.length(); i++) {
+                    String shorter = w.substring(0, i) + w.substring(i + 1);
+                    if (result.add(shorter)) {
+                        next.add(shorter);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return result;
+    }
+
+    /**
+     * Edit distances between a and every prefix of b (entry j is the distance to the first j letters of b),
+     * counting insertions, deletions, substitutions and swaps of neighbouring letters.
+     * Only a band of width max around the diagonal is computed, and anything beyond max is capped at max + 1.
+     * Returns null as soon as no prefix of b can be within max edits.
+     */
+    static int[] distanceRow(String a, String b, int max) {
+        int n = b.length();
+        int tooFar = max + 1;
+        int[] prevPrev = new int[n + 1];
+        int[] prev = new int[n + 1];
+        int[] curr = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            prev[j] = Math.min(j, tooFar);
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            Arrays.fill(curr, tooFar);
+            curr[0] = Math.min(i, tooFar);
+            int rowMin = curr[0];
+            int to = Math.min(n, i + max);
+            for (int j = Math.max(1, i - max); j <= to; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(prev[j] + 1, curr[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d = Math.min(d, prevPrev[j - 2] + 1);
+                }
+                curr[j] = Math.min(d, tooFar);
+                rowMin = Math.min(rowMin, curr[j]);
+            }
+            if (rowMin > max) {
+                return null;
+            }
+            int[] recycled = prevPrev;
+            prevPrev = prev;
+            prev = curr;
+            curr = recycled;
+        }
+        return prev;
+    }
+
+    // Words are split at anything that isn't a letter or digit, and also where letters meet digits,
+    // so "fexo120" finds "Fexo 120" and "Seclo 20" finds "Seclo20".
+    static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+|(?<=\\p{L})(?=\\p{N})|(?<=\\p{N})(?=\\p{L})")) {
+            if (!token.isEmpty()) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+}
+
+/**
+ * This cache remembers recent search result lists, because buyers mostly search the same few emergency drugs
+ * from the same few areas. Entries are keyed on the lower-cased search term plus a small location cell,
+ * and evicted least-recently-used once the cache is full.
+ *
+ * Instead of expiring entries on a timer, I keep a version counter per medicine name. Every buy, edit or delete bumps the
+ * counter for that name, and an entry is only served if the counters of all the names it matched are unchanged.
+ * So a purchase of Napa only invalidates searches that matched Napa. Adding a brand-new name bumps a separate counter,
+ * because the new name could match any cached search.
+ */
+class SearchResultCache {
+    // 0.0001 degrees is about 11 m, so buyers in the same spot share entries and the cached distances stay accurate.
+    private static final double CELL_DEGREES = 0.0001;
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Long> medicineVersions = new HashMap<>();
+    private long namesVersion = 0;   // Bumped when a new medicine name appears.
+    private long catalogVersion = 0; // Bumped on every change; used by the empty search, which depends on everything.
+    private long hits, misses, stale;
+
+    public SearchResultCache(int capacity) {
+        // An access-ordered LinkedHashMap is an LRU list for free: I just drop the eldest entry when we go over capacity.
+        this.entries = new LinkedHashMap<String, Entry>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // The whole trimmed term, not just its words: "(" has no words but isn't the empty search, and it can still
+    // match a pharmacy name like "Lazz Pharma (Uttara)".
+    public static String key(String searchTerm, Location location) {
+        String words = (searchTerm == null) ? "" : searchTerm.trim().toLowerCase();
+        if (location == null) {
+            return words + "|admin";
+        }
+        return words + "|" + Math.round(location.getLatitude() / CELL_DEGREES) + "," + Math.round(location.getLongitude() / CELL_DEGREES);
+    }
+
+    /**
+     * Returns the cached results if they're still valid, or null on a miss.
+     */
+    public synchronized List<SearchResult> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && isCurrent(entry)) {
+            hits++;
+            return entry.results;
+        }
+        if (entry != null) {
+            entries.remove(key);
+            stale++;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Records the versions a search is about to depend on. This must be taken before the search reads the catalog,
+     * including the name index, so a change that lands mid-search makes the new entry stale instead of hiding it.
+     * On its own the stamp covers everything, which is right for the empty search; see narrow for the rest.
+     */
+    public synchronized Stamp stamp() {
+        return new Stamp(null, null, namesVersion, catalogVersion);
+    }
+
+    /**
+     * Narrows a stamp from stamp() to the names the search matched, so it only goes stale when one of them changes.
+     * It keeps the names version from the original stamp: a name added while the index was being matched still counts.
+     * Call it before reading the matched medicines' stock.
+     */
+    public synchronized Stamp narrow(Stamp taken, Set<String> matchedNames) {
+        String[] names = matchedNames.toArray(new String[0]);
+        long[] versions = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            versions[i] = medicineVersions.getOrDefault(names[i], 0L);
+        }
+        return new Stamp(names, versions, taken.namesVersion, taken.catalogVersion);
+    }
+
+    public synchronized void put(String key, List<SearchResult> results, Stamp stamp) {
+        entries.put(key, new Entry(Collections.unmodifiableList(new ArrayList<>(results)), stamp));
+    }
+
+    /**
+     * Called whenever a medicine's stock, price or details change, or it's deleted.
+     */
+    public synchronized void medicineChanged(String medicineName) {
+        medicineVersions.merge(medicineName, 1L, Long::sum);
+        catalogVersion++;
+    }
+
+    /**
+     * Called when a medicine name that didn't exist before is added.
+     */
+    public synchronized void nameAdded(String medicineName) {
+        namesVersion++;
+        medicineChanged(medicineName);
+    }
+
+    /**
+     * Called when many medicines may have changed at once, e.g. a whole pharmacy joined the catalog.
+     */
+    public synchronized void catalogChanged() {
+        namesVersion++;
+        catalogVersion++;
+    }
+
+    public synchronized SearchCacheStats getStats() {
+        return new SearchCacheStats(hits, misses, stale, entries.size());
+    }
+
+    private boolean isCurrent(Entry entry) {
+        Stamp stamp = entry.stamp;
+        if (stamp.names == null) {
+            return stamp.catalogVersion == catalogVersion;
+        }
+        if (stamp.namesVersion != namesVersion) {
+            return false;
+        }
+        for (int i = 0; i < stamp.names.length; i++) {
+            if (medicineVersions.getOrDefault(stamp.names[i], 0L) != stamp.versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static class Stamp {
+        private final String[] names;
+        private final long[] versions;
+        private final long namesVersion, catalogVersion;
+        Stamp(String[] names, long[] versions, long namesVersion, long catalogVersion) {
+            this.names = names; this.versions = versions; this.namesVersion = namesVersion; this.catalogVersion = catalogVersion;
+        }
+    }
+
+    private static class Entry {
+        final List<SearchResult> results;
+        final Stamp stamp;
+        Entry(List<SearchResult> results, Stamp stamp) { this.results = results; this.stamp = stamp; }
+    }
+}
+
+/**
+ * This index answers facet filters ("in-stock Antibiotics from Beximco within 5 km") with bitmaps instead of scanning
+ * every pharmacy's inventory. Every medicine entry gets a small integer slot, and for each category, supplier and pharmacy
+ * there is a bitmap of the slots that belong to it, plus one bitmap of the slots that are in stock.
+ * A filter is then just an AND of a few bitmaps, and a facet count is the size of such an AND, computed without building it.
+ * The search term joins the AND as one more bitmap, made from the slots of the medicine names it matched.
+ */
+class CatalogBitmapIndex {
+    private final List<Medicine> slots = new ArrayList<>();
+    private final Map<Medicine, Integer> slotOf = new IdentityHashMap<>();
+    // What each slot was filed under, so an edit can clear the old bits before setting the new ones.
+    private final List<String> slotCategory = new ArrayList<>();
+    private final List<String> slotSupplier = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final Map<String, Bitmap> byCategory = new TreeMap<>();
+    private final Map<String, Bitmap> bySupplier = new TreeMap<>();
+    private final Map<String, Bitmap> byPharmacy = new HashMap<>();
+    // Names are many and mostly in a few pharmacies each, so a slot list is much smaller than a bitmap per name.
+    private final Map<String, List<Integer>> slotsByName = new HashMap<>();
+    private final Map<String, Pharmacy> pharmacies = new HashMap<>();
+    private final Bitmap inStock = new Bitmap();
+
+    public static CatalogBitmapIndex build(List<Pharmacy> pharmacies) {
+        CatalogBitmapIndex index = new CatalogBitmapIndex();
+        for (Pharmacy p : pharmacies) {
+            index.addPharmacy(p);
+            for (Medicine m : p.getInventory()) {
+                index.add(m);
+            }
+        }
+        return index;
+    }
+
+    // The distance filter needs to know where each pharmacy is, and a search result needs its id.
+    public synchronized void addPharmacy(Pharmacy pharmacy) {
+        pharmacies.put(pharmacy.getName(), pharmacy);
+    }
+
+    public synchronized void add(Medicine medicine) {
+        if (slotOf.containsKey(medicine)) {
+            return;
+        }
+        // I reuse slots freed by deletes, so the bitmaps don't keep growing as the inventory churns.
+        int slot;
+        if (freeSlots.isEmpty()) {
+            slot = slots.size();
+            slots.add(medicine);
+            slotCategory.add(null);
+            slotSupplier.add(null);
+        } else {
+            slot = freeSlots.pop();
+            slots.set(slot, medicine);
+        }
+        slotOf.put(medicine, slot);
+        file(slot, medicine);
+    }
+
+    public synchronized void remove(Medicine medicine) {
+        Integer slot = slotOf.remove(medicine);
+        if (slot != null) {
+            unfile(slot, medicine);
+            slots.set(slot, null);
+            freeSlots.push(slot);
+        }
+    }
+
+    /**
+     * Re-files a medicine after its category, supplier or stock was edited.
+     */
+    public synchronized void update(Medicine medicine) {
+        Integer slot = slotOf.get(medicine);
+        if (slot != null) {
+            unfile(slot, medicine);
+            file(slot, medicine);
+        }
+    }
+
+    /**
+     * The cheap path for purchases: only the in-stock bit can change.
+     */
+    public synchronized void stockChanged(Medicine medicine) {
+        Integer slot = slotOf.get(medicine);
+        if (slot != null) {
+            inStock.set(slot, medicine.getStock() > 0);
+        }
+    }
+
+    /**
+     * Answers a filtered search: the filter's bitmaps ANDed with the entries the search term matched, and a SearchResult
+     * built only for what's left. matchScores maps each matching medicine name to its score (null for the empty search,
+     * which matches everything); every medicine of the pharmacies in pharmacyMatches matches with score 0.
+     * The results are not sorted.
+     */
+    public synchronized List<SearchResult> search(Map<String, Integer> matchScores, Set<String> pharmacyMatches,
+                                                  FacetFilter filter, Location userLocation) {
+        Bitmap selected = select(filter.getCategory(), filter.getSupplier(), filter.getMaxDistanceKm(), userLocation);
+        if (matchScores != null) {
+            selected.and(termSlots(matchScores.keySet(), pharmacyMatches));
+        }
+        List<SearchResult> results = new ArrayList<>();
+        Map<String, Double> distances = new HashMap<>(); // Once per pharmacy, like the unfiltered search.
+        for (int slot = selected.nextSetBit(0); slot >= 0; slot = selected.nextSetBit(slot + 1)) {
+            Medicine medicine = slots.get(slot);
+            Pharmacy pharmacy = pharmacies.get(medicine.getPharmacyName());
+            int score = matchScores == null || pharmacyMatches.contains(pharmacy.getName()) ? 0 : matchScores.get(medicine.getName());
+            double distance = distances.computeIfAbsent(pharmacy.getName(), k -> userLocation == null ? -1.0 :
+                DistanceCalculator.calculate(userLocation.getLatitude(), userLocation.getLongitude(),
+                    pharmacy.getLocation().getLatitude(), pharmacy.getLocation().getLongitude()));
+            results.add(new SearchResult(pharmacy.getId(), pharmacy.getName(), medicine, distance, score));
+        }
+        return results;
+    }
+
+    /**
+     * Counts how many in-stock entries each category and supplier would show.
+     * As usual for facets, the category counts ignore the category filter itself (and the same for suppliers),
+     * so the buyer can see what switching to another value would give.
+     * If matchedNames isn't null, only the entries the search box matches are counted: those medicine names,
+     * plus everything at the pharmacies in pharmacyMatches.
+     */
+    public synchronized FacetCounts facetCounts(Set<String> matchedNames, Set<String> pharmacyMatches,
+                                                FacetFilter filter, Location userLocation) {
+        Bitmap termSlots = matchedNames == null ? null : termSlots(matchedNames, pharmacyMatches);
+        Bitmap forCategories = select(null, filter.getSupplier(), filter.getMaxDistanceKm(), userLocation);
+        Bitmap forSuppliers = select(filter.getCategory(), null, filter.getMaxDistanceKm(), userLocation);
+        if (termSlots != null) {
+            forCategories.and(termSlots);
+            forSuppliers.and(termSlots);
+        }
+        return new FacetCounts(countEach(byCategory, forCategories), countEach(bySupplier, forSuppliers));
+    }
+
+    private Bitmap select(String category, String supplier, double maxDistanceKm, Location userLocation) {
+        Bitmap selected = inStock.copy();
+        if (category != null) {
+            selected.and(byCategory.getOrDefault(category, new Bitmap()));
+        }
+        if (supplier != null) {
+            selected.and(bySupplier.getOrDefault(supplier, new Bitmap()));
+        }
+        if (maxDistanceKm > 0 && userLocation != null) {
+            // There are far fewer pharmacies than medicines, so I check distances per pharmacy and OR their bitmaps.
+            Bitmap nearby = new Bitmap();
+            for (Map.Entry<String, Pharmacy> e : pharmacies.entrySet()) {
+                Location loc = e.getValue().getLocation();
+                double distance = DistanceCalculator.calculate(userLocation.getLatitude(), userLocation.getLongitude(),
+                        loc.getLatitude(), loc.getLongitude());
+                if (distance <= maxDistanceKm && byPharmacy.containsKey(e.getKey())) {
+                    nearby.or(byPharmacy.get(e.getKey()));
+                }
+            }
+            selected.and(nearby);
+        }
+        return selected;
+    }
+
+    // The slots of the matched medicine names and of every medicine at the matched pharmacies.
+    private Bitmap termSlots(Set<String> matchedNames, Set<String> pharmacyMatches) {
+        Bitmap term = new Bitmap();
+        for (String name : matchedNames) {
+            for (int slot : slotsByName.getOrDefault(name, Collections.emptyList())) {
+                term.set(slot);
+            }
+        }
+        for (String pharmacyName : pharmacyMatches) {
+            Bitmap ofPharmacy = byPharmacy.get(pharmacyName);
+            if (ofPharmacy != null) {
+                term.or(ofPharmacy);
+            }
+        }
+        return term;
+    }
+
+    private static Map<String, Integer> countEach(Map<String, Bitmap> facet, Bitmap base) {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, Bitmap> e : facet.entrySet()) {
+            int count = base.andCardinality(e.getValue());
+            if (count > 0) {
+                counts.put(e.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    private void file(int slot, Medicine medicine) {
+        slotCategory.set(slot, medicine.getCategory());
+        slotSupplier.set(slot, medicine.getSupplier());
+        byCategory.computeIfAbsent(facetValue(medicine.getCategory()), k -> new Bitmap()).set(slot);
+        bySupplier.computeIfAbsent(facetValue(medicine.getSupplier()), k -> new Bitmap()).set(slot);
+        byPharmacy.computeIfAbsent(medicine.getPharmacyName(), k -> new Bitmap()).set(slot);
+        slotsByName.computeIfAbsent(medicine.getName(), k -> new ArrayList<>(1)).add(slot);
+        inStock.set(slot, medicine.getStock() > 0);
+    }
+
+    private void unfile(int slot, Medicine medicine) {
+        byCategory.get(facetValue(slotCategory.get(slot))).clear(slot);
+        bySupplier.get(facetValue(slotSupplier.get(slot))).clear(slot);
+        byPharmacy.get(medicine.getPharmacyName()).clear(slot);
+        List<Integer> sameName = slotsByName.get(medicine.getName());
+        sameName.remove(Integer.valueOf(slot));
+        if (sameName.isEmpty()) {
+            slotsByName.remove(medicine.getName());
+        }
+        inStock.clear(slot);
+    }
+
+    // The form allows an empty supplier, which I file under a visible label rather than a blank entry.
+    private static String facetValue(String value) {
+        return (value == null || value.isEmpty()) ? "(none)" : value;
+    }
+}
+
+/**
+ * A growable bitmap over small integer ids, like java.util.BitSet, but with andCardinality(),
+ * which counts an intersection without allocating it. The facet counts depend on that.
+ */
+class Bitmap {
+    private long[] words = new long[1];
+
+    public void set(int bit) {
+        int word = bit >>> 6;
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(word + 1, words.length * 2));
+        }
+        words[word] |= 1L << bit;
+    }
+
+    public void set(int bit, boolean value) {
+        if (value) {
+            set(bit);
+        } else {
+            clear(bit);
+        }
+    }
+
+    public void clear(int bit) {
+        int word = bit >>> 6;
+        if (word < words.length) {
+            words[word] &= ~(1L << bit);
+        }
+    }
+
+    public boolean get(int bit) {
+        int word = bit >>> 6;
+        return word < words.length && (words[word] & (1L << bit)) != 0;
+    }
+
+    public Bitmap copy() {
+        Bitmap copy = new Bitmap();
+        copy.words = words.clone();
+        return copy;
+    }
+
+    public void and(Bitmap other) {
+        int common = Math.min(words.length, other.words.length);
+        for (int i = 0; i < common; i++) {
+            words[i] &= other.words[i];
+        }
+        Arrays.fill(words, common, words.length, 0L);
+    }
+
+    public void or(Bitmap other) {
+        if (other.words.length > words.length) {
+            words = Arrays.copyOf(words, other.words.length);
+        }
+        for (int i = 0; i < other.words.length; i++) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    // The first set bit at or after 'from', or -1 if there is none; for walking the bits of a result.
+    public int nextSetBit(int from) {
+        int word = from >>> 6;
+        if (word >= words.length) {
+            return -1;
+        }
+        long bits = words[word] & (-1L << from);
+        while (bits == 0) {
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+        return word * 64 + Long.numberOfTrailingZeros(bits);
+    }
+
+    public int andCardinality(Bitmap other) {
+        int common = Math.min(words.length, other.words.length);
+        int count = 0;
+        for (int i = 0; i < common; i++) {
+            count += Long.bitCount(words[i] & other.words[i]);
+        }
+        return count;
+    }
+}
+
+/**
+ * This tracker keeps every dated lot in one TreeMap keyed by expiry date, across all pharmacies.
+ * The expiry sweep and the near-expiry report only read the front of that map (headMap), so they cost
+ * O(lots expiring soon) instead of a scan of every medicine in every pharmacy.
+ * Lots that were used up by sales stay in the map until the next sweep passes over them; they just have quantity 0.
+ */
+class ExpiryTracker {
+    private final TreeMap<LocalDate, List<StockLot>> lotsByExpiry = new TreeMap<>();
+
+    public static ExpiryTracker build(List<Pharmacy> pharmacies) {
+        ExpiryTracker tracker = new ExpiryTracker();
+        for (Pharmacy p : pharmacies) {
+            for (Medicine m : p.getInventory()) {
+                tracker.trackAll(m);
+            }
+        }
+        return tracker;
+    }
+
+    public synchronized void track(StockLot lot) {
+        if (lot.getExpiryDate() != null) {
+            lotsByExpiry.computeIfAbsent(lot.getExpiryDate(), d -> new ArrayList<>()).add(lot);
+        }
+    }
+
+    public synchronized void trackAll(Medicine medicine) {
+        for (StockLot lot : medicine.getLots()) {
+            track(lot);
+        }
+    }
+
+    // For a medicine that leaves this catalog, so the sweep here no longer retires its lots.
+    public synchronized void untrackAll(Medicine medicine) {
+        for (StockLot lot : medicine.getLots()) {
+            List<StockLot> sameDay = lot.getExpiryDate() == null ? null : lotsByExpiry.get(lot.getExpiryDate());
+            if (sameDay != null) {
+                sameDay.remove(lot);
+                if (sameDay.isEmpty()) {
+                    lotsByExpiry.remove(lot.getExpiryDate());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns every lot with stock left that expired before 'today'.
+     */
+    public synchronized List<StockLot> pollExpired(LocalDate today) {
+        List<StockLot> expired = new ArrayList<>();
+        Iterator<List<StockLot>> it = lotsByExpiry.headMap(today, false).values().iterator();
+        while (it.hasNext()) {
+            for (StockLot lot : it.next()) {
+                if (lot.getQuantity() > 0) {
+                    expired.add(lot);
+                }
+            }
+            it.remove();
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the lots with stock left that expire on or before 'limit', soonest first.
+     */
+    public synchronized List<StockLot> expiringBy(LocalDate limit) {
+        List<StockLot> expiring = new ArrayList<>();
+        for (List<StockLot> sameDay : lotsByExpiry.headMap(limit, true).values()) {
+            sameDay.removeIf(lot -> lot.getQuantity() == 0); // A cheap moment to drop lots that sales have used up.
+            expiring.addAll(sameDay);
+        }
+        return expiring;
+    }
+}
+
+/**
+ * Sales history split into time-partitioned segments, so questions like "sales at pharmacy X in the last 24 hours"
+ * or "everything customer Y bought" don't have to scan every purchase ever made.
+ *
+ * Each segment holds the records whose timestamp falls in one fixed window (a day by default), remembers its
+ * smallest and largest timestamp, and keeps a posting list per customer and per pharmacy: the positions of their
+ * records in the segment. A query picks the windows that overlap its range from a TreeMap, skips segments whose
+ * min/max timestamps fall outside it, and then only visits the records in the matching posting list.
+ */
+class SalesHistoryIndex {
+    static final long DEFAULT_SEGMENT_MILLIS = 24L * 60 * 60 * 1000;
+    private final long segmentMillis;
+    private final TreeMap<Long, HistorySegment> segments = new TreeMap<>(); // Keyed by the start of each window.
+    private int size = 0;
+
+    public SalesHistoryIndex(long segmentMillis) {
+        this.segmentMillis = segmentMillis;
+    }
+
+    public synchronized void add(PurchaseRecord record) {
+        long window = Math.floorDiv(record.getTimestampMillis(), segmentMillis) * segmentMillis;
+        segments.computeIfAbsent(window, HistorySegment::new).add(record);
+        size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The segments whose whole window ends at or before 'beforeMillis', by window start, ready to be archived.
+     * They stay here until dropSegment() is called. A late sale (a back-dated record, or a clock that was behind) can
+     * still land in one, which is why dropSegment() is told how many records were archived.
+     */
+    public synchronized Map<Long, List<PurchaseRecord>> closedSegments(long beforeMillis) {
+        Map<Long, List<PurchaseRecord>> closed = new TreeMap<>();
+        for (HistorySegment segment : segments.headMap(beforeMillis - segmentMillis, true).values()) {
+            closed.put(segment.windowStart, new ArrayList<>(segment.records));
+        }
+        return closed;
+    }
+
+    /**
+     * Drops the first 'archivedCount' records of a segment, i.e. the ones closedSegments() returned.
+     * Records are only ever appended, so anything added since stays here for the next roll.
+     */
+    public synchronized void dropSegment(long windowStart, int archivedCount) {
+        HistorySegment segment = segments.remove(windowStart);
+        if (segment == null) {
+            return;
+        }
+        size -= segment.records.size();
+        for (PurchaseRecord late : segment.records.subList(Math.min(archivedCount, segment.records.size()), segment.records.size())) {
+            add(late);
+        }
+    }
+
+    /**
+     * Every record, oldest window first (and in the order they were added within a window).
+     */
+    public synchronized List<PurchaseRecord> all() {
+        List<PurchaseRecord> all = new ArrayList<>(size);
+        for (HistorySegment segment : segments.values()) {
+            all.addAll(segment.records);
+        }
+        return all;
+    }
+
+    /**
+     * The records with fromMillis <= timestamp < toMillis.
+     */
+    public synchronized List<PurchaseRecord> between(long fromMillis, long toMillis) {
+        List<PurchaseRecord> found = new ArrayList<>();
+        for (HistorySegment segment : overlapping(fromMillis, toMillis)) {
+            boolean whole = segment.minMillis >= fromMillis && segment.maxMillis < toMillis;
+            for (PurchaseRecord record : segment.records) {
+                if (whole || inRange(record, fromMillis, toMillis)) {
+                    found.add(record);
+                }
+            }
+        }
+        return found;
+    }
+
+    public synchronized List<PurchaseRecord> forPharmacy(String pharmacyName, long fromMillis, long toMillis) {
+        List<PurchaseRecord> found = new ArrayList<>();
+        for (HistorySegment segment : overlapping(fromMillis, toMillis)) {
+            segment.collect(segment.byPharmacy.get(pharmacyName), fromMillis, toMillis, found);
+        }
+        return found;
+    }
+
+    public synchronized List<PurchaseRecord> forCustomer(String customerName, long fromMillis, long toMillis) {
+        List<PurchaseRecord> found = new ArrayList<>();
+        for (HistorySegment segment : overlapping(fromMillis, toMillis)) {
+            segment.collect(segment.byCustomer.get(customerName), fromMillis, toMillis, found);
+        }
+        return found;
+    }
+
+    // The segments whose window overlaps the range and whose actual timestamps do too.
+    private List<HistorySegment> overlapping(long fromMillis, long toMillis) {
+        List<HistorySegment> overlapping = new ArrayList<>();
+        if (fromMillis >= toMillis) {
+            return overlapping;
+        }
+        Long firstWindow = segments.floorKey(fromMillis);
+        Map<Long, HistorySegment> candidates = segments.subMap(firstWindow == null ? Long.MIN_VALUE : firstWindow, true, toMillis, false);
+        for (HistorySegment segment : candidates.values()) {
+            if (segment.maxMillis >= fromMillis && segment.minMillis < toMillis) {
+                overlapping.add(segment);
+            }
+        }
+        return overlapping;
+    }
+
+    private static boolean inRange(PurchaseRecord record, long fromMillis, long toMillis) {
+        return record.getTimestampMillis() >= fromMillis && record.getTimestampMillis() < toMillis;
+    }
+
+    private static class HistorySegment {
+        final long windowStart;
+        final List<PurchaseRecord> records = new ArrayList<>();
+        final Map<String, Postings> byCustomer = new HashMap<>();
+        final Map<String, Postings> byPharmacy = new HashMap<>();
+        long minMillis = Long.MAX_VALUE, maxMillis = Long.MIN_VALUE;
+
+        HistorySegment(long windowStart) {
+            this.windowStart = windowStart;
+        }
+
+        void add(PurchaseRecord record) {
+            int position = records.size();
+            records.add(record);
+            byCustomer.computeIfAbsent(record.getCustomerName(), k -> new Postings()).add(position);
+            byPharmacy.computeIfAbsent(record.getPharmacyName(), k -> new Postings()).add(position);
+            minMillis = Math.min(minMillis, record.getTimestampMillis());
+            maxMillis = Math.max(maxMillis, record.getTimestampMillis());
+        }
+
+        void collect(Postings postings, long fromMillis, long toMillis, List<PurchaseRecord> found) {
+            if (postings == null) {
+                return;
+            }
+            boolean whole = minMillis >= fromMillis && maxMillis < toMillis;
+            for (int i = 0; i < postings.size; i++) {
+                PurchaseRecord record = records.get(postings.positions[i]);
+                if (whole || inRange(record, fromMillis, toMillis)) {
+                    found.add(record);
+                }
+            }
+        }
+    }
+
+    // A growable int array; a List<Integer> would box every position.
+    private static class Postings {
+        int[] positions = new int[4];
+        int size;
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+}
+
+/**
+ * The cold tier of the sales history: closed SalesHistoryIndex segments rolled into compressed columnar files,
+ * one file per segment window, kept for audit and for the occasional report.
+ *
+ * File layout: a fixed header (magic, version, row count, window start, min and max timestamp, CRC32 of the rest, and the byte
+ * length of each column), then six columns, each stored on its own so a query only reads the columns it needs:
+ *   time      - delta-encoded from the window start, as zigzag varints (a few bytes per sale instead of 8)
+ *   customer, medicine, pharmacy
+ *             - a deflated dictionary of the distinct names, then each row's dictionary id bit-packed at the smallest width that fits
+ *   quantity  - bit-packed
+ *   total     - zigzag varints (paisa)
+ * Aggregations walk the id and value columns directly and add into an array indexed by dictionary id; no row is ever
+ * turned back into a PurchaseRecord, and for files whose min/max timestamps miss the query range only the header is read.
+ */
+class ColumnarSalesArchive {
+    static final int MAGIC = 0x454D5341; // "EMSA"
+    static final int VERSION = 1;
+    private static final int TIME = 0, CUSTOMER = 1, MEDICINE = 2, PHARMACY = 3, QUANTITY = 4, TOTAL = 5, COLUMNS = 6;
+    private static final int CRC_OFFSET = 4 + 4 + 4 + 8 + 8 + 8;
+    private static final int HEADER_BYTES = CRC_OFFSET + 8 + COLUMNS * 4;
+    private static final int PADDING = 8; // Bit-packed columns end with spare bytes, so the reader can always load a whole long.
+    private final Path directory;
+    // The header of every file, by path, so a query can skip the files outside its range without opening them.
+    // It's read from the directory on first use and kept current by write(), so one archive object should own the directory.
+    private Map<Path, SegmentFile> headers;
+
+    public ColumnarSalesArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Writes one closed segment. Like CatalogSnapshot, it writes a temp file and renames it, so a crash never leaves half a file.
+     * If the window is already archived (late sales for a day rolled earlier), the old rows are read back and merged in,
+     * never overwritten. A file there that I can't read as an archive file is an error, not something to replace.
+     */
+    public Path write(long windowStart, List<PurchaseRecord> records) throws IOException {
+        Path file = directory.resolve(String.format("sales-%020d.col", windowStart));
+        if (Files.exists(file)) {
+            SegmentFile existing = SegmentFile.open(file);
+            if (existing == null) {
+                throw new IOException("Not an archive file of version " + VERSION + ", refusing to overwrite: " + file);
+            }
+            List<PurchaseRecord> merged = existing.load().records();
+            merged.addAll(records);
+            merged.sort(Comparator.comparingLong(PurchaseRecord::getTimestampMillis)); // Stable, so equal times keep their order.
+            records = merged;
+        }
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (PurchaseRecord r : records) {
+            min = Math.min(min, r.getTimestampMillis());
+            max = Math.max(max, r.getTimestampMillis());
+        }
+        byte[][] columns = new byte[COLUMNS][];
+        ByteArrayOutputStream column = new ByteArrayOutputStream();
+        long previous = windowStart;
+        for (PurchaseRecord r : records) {
+            writeVarint(column, r.getTimestampMillis() - previous);
+            previous = r.getTimestampMillis();
+        }
+        columns[TIME] = column.toByteArray();
+        columns[CUSTOMER] = dictionaryColumn(records, PurchaseRecord::getCustomerName);
+        columns[MEDICINE] = dictionaryColumn(records, PurchaseRecord::getMedicineName);
+        columns[PHARMACY] = dictionaryColumn(records, PurchaseRecord::getPharmacyName);
+        long[] quantities = new long[records.size()];
+        int maxQuantity = 0;
+        for (int i = 0; i < quantities.length; i++) {
+            quantities[i] = records.get(i).getQuantity();
+            maxQuantity = Math.max(maxQuantity, records.get(i).getQuantity());
+        }
+        column.reset();
+        column.write(bitsFor(maxQuantity));
+        writePacked(column, quantities, bitsFor(maxQuantity));
+        columns[QUANTITY] = column.toByteArray();
+        column.reset();
+        for (PurchaseRecord r : records) {
+            writeVarint(column, r.getTotalPaisa());
+        }
+        columns[TOTAL] = column.toByteArray();
+
+        int payloadLength = 0;
+        for (byte[] c : columns) {
+            payloadLength += c.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(records.size()).putLong(windowStart).putLong(min).putLong(max)
+           .putLong(0L); // The CRC is patched in at the end.
+        for (byte[] c : columns) {
+            buf.putInt(c.length);
+        }
+        for (byte[] c : columns) {
+            buf.put(c);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_BYTES, payloadLength);
+        buf.putLong(CRC_OFFSET, crc.getValue());
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, buf.array());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            if (headers != null) {
+                headers.put(file, new SegmentFile(file, buf));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Total revenue (paisa) of the archived sales with fromMillis <= timestamp < toMillis.
+     */
+    public long totalRevenue(long fromMillis, long toMillis) throws IOException {
+        Long total = aggregate(fromMillis, toMillis, -1, TOTAL).get("");
+        return total == null ? 0 : total;
+    }
+
+    public Map<String, Long> revenueByPharmacy(long fromMillis, long toMillis) throws IOException {
+        return aggregate(fromMillis, toMillis, PHARMACY, TOTAL);
+    }
+
+    public Map<String, Long> unitsByMedicine(long fromMillis, long toMillis) throws IOException {
+        return aggregate(fromMillis, toMillis, MEDICINE, QUANTITY);
+    }
+
+    public List<Path> files() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "sales-*.col")) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        }
+        Collections.sort(files); // The zero-padded window start in the name makes this time order.
+        return files;
+    }
+
+    // Sums valueColumn per distinct value of groupColumn (everything under "" when groupColumn is -1).
+    private Map<String, Long> aggregate(long fromMillis, long toMillis, int groupColumn, int valueColumn) throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        List<Path> overlapping = new ArrayList<>();
+        synchronized (this) {
+            if (headers == null) {
+                headers = new TreeMap<>();
+                for (Path path : files()) {
+                    SegmentFile header = SegmentFile.open(path);
+                    if (header != null) {
+                        headers.put(path, header);
+                    }
+                }
+            }
+            for (SegmentFile header : headers.values()) {
+                if (header.maxMillis >= fromMillis && header.minMillis < toMillis) {
+                    overlapping.add(header.path);
+                }
+            }
+        }
+        for (Path path : overlapping) {
+            SegmentFile file = SegmentFile.open(path);
+            if (file == null) {
+                continue;
+            }
+            file.load();
+            boolean whole = file.minMillis >= fromMillis && file.maxMillis < toMillis;
+            long[] times = whole ? null : file.timestamps(); // Only decoded when the range cuts through this file.
+            String[] names = groupColumn < 0 ? new String[]{""} : file.dictionary(groupColumn);
+            BitReader groups = groupColumn < 0 ? null : file.ids(groupColumn);
+            LongSupplier values = valueColumn == QUANTITY ? file.quantities()::next : file.varints(valueColumn)::next;
+            long[] sums = new long[names.length];
+            for (int row = 0; row < file.rows; row++) {
+                int group = groups == null ? 0 : (int) groups.next();
+                long value = values.getAsLong();
+                if (whole || (times[row] >= fromMillis && times[row] < toMillis)) {
+                    sums[group] += value;
+                }
+            }
+            for (int i = 0; i < names.length; i++) {
+                if (sums[i] != 0) {
+                    result.merge(names[i], sums[i], Long::sum);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static byte[] dictionaryColumn(List<PurchaseRecord> records, Function<PurchaseRecord, String> field) {
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        long[] rowIds = new long[records.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = ids.computeIfAbsent(field.apply(records.get(i)), k -> ids.size());
+        }
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        for (String s : ids.keySet()) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(strings, bytes.length);
+            strings.write(bytes, 0, bytes.length);
+        }
+        // A day has thousands of distinct customers, and their names dwarf everything else in the file, so I deflate the
+        // names. Only this block is compressed: a query inflates it once per file, and the ids it scans stay plain.
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION); // Written once, read for years, so ratio beats speed.
+        deflater.setInput(strings.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream packedStrings = new ByteArrayOutputStream(strings.size() / 3 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            packedStrings.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        int width = bitsFor(ids.size() - 1);
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 1);
+        header.putInt(packedStrings.size()).putInt(ids.size()).put((byte) width);
+        ByteArrayOutputStream column = new ByteArrayOutputStream();
+        column.write(header.array(), 0, header.capacity());
+        column.write(packedStrings.toByteArray(), 0, packedStrings.size());
+        writePacked(column, rowIds, width);
+        return column.toByteArray();
+    }
+
+    static int bitsFor(long maxValue) {
+        return maxValue <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(maxValue);
+    }
+
+    // Most significant bit first, so BitReader can take each value from the top of a big-endian long.
+    private static void writePacked(ByteArrayOutputStream out, long[] values, int width) {
+        long pending = 0;
+        int pendingBits = 0;
+        for (long value : values) {
+            pending = (pending << width) | value;
+            pendingBits += width;
+            while (pendingBits >= 8) {
+                out.write((int) (pending >>> (pendingBits - 8)));
+                pendingBits -= 8;
+            }
+            pending &= (1L << pendingBits) - 1;
+        }
+        if (pendingBits > 0) {
+            out.write((int) (pending << (8 - pendingBits)));
+        }
+        for (int i = 0; i < PADDING; i++) {
+            out.write(0);
+        }
+    }
+
+    // Zigzag first, so a small negative delta (a sale logged slightly out of order) still takes one or two bytes.
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static final class SegmentFile {
+        final Path path;
+        int rows;
+        long windowStart, minMillis, maxMillis;
+        final int[] columnStart = new int[COLUMNS];
+        private ByteBuffer buf; // The whole file, once load() has read it.
+
+        private SegmentFile(Path path, ByteBuffer header) {
+            this.path = path;
+            parseHeader(header);
+        }
+
+        /**
+         * Reads just the fixed header, which is all a query needs to decide whether to skip the file.
+         * Returns null (and the file is skipped) if it isn't an archive file of this version.
+         */
+        static SegmentFile open(Path path) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (header.hasRemaining()) {
+                    if (channel.read(header) < 0) {
+                        return null;
+                    }
+                }
+            }
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                return null;
+            }
+            return new SegmentFile(path, header);
+        }
+
+        /**
+         * Reads the columns and checks them against the CRC, only for files a query actually needs.
+         * I read the file onto the heap instead of mapping it: a mapping stays open until it's garbage collected,
+         * and on Windows a file that's still mapped can't be replaced when late sales are merged into it.
+         */
+        SegmentFile load() throws IOException {
+            if (buf == null) {
+                ByteBuffer all = ByteBuffer.wrap(Files.readAllBytes(path));
+                if (all.capacity() < HEADER_BYTES) {
+                    throw new IOException("Archive file truncated: " + path);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(all.array(), HEADER_BYTES, all.capacity() - HEADER_BYTES);
+                if (crc.getValue() != all.getLong(CRC_OFFSET)) {
+                    throw new IOException("Archive checksum mismatch: " + path);
+                }
+                parseHeader(all); // Again, in case a merge replaced the file since open().
+                buf = all;
+            }
+            return this;
+        }
+
+        private void parseHeader(ByteBuffer header) {
+            rows = header.getInt(8);
+            windowStart = header.getLong(12);
+            minMillis = header.getLong(20);
+            maxMillis = header.getLong(28);
+            int offset = HEADER_BYTES;
+            for (int c = 0; c < COLUMNS; c++) {
+                columnStart[c] = offset;
+                offset += header.getInt(CRC_OFFSET + 8 + c * 4);
+            }
+        }
+
+        long[] timestamps() {
+            VarintReader deltas = varints(TIME);
+            long[] times = new long[rows];
+            long previous = windowStart;
+            for (int row = 0; row < rows; row++) {
+                previous += deltas.next();
+                times[row] = previous;
+            }
+            return times;
+        }
+
+        // Every row back as a PurchaseRecord. Only used to merge late sales into the file; queries never need this.
+        List<PurchaseRecord> records() throws IOException {
+            long[] times = timestamps();
+            String[] customers = dictionary(CUSTOMER), medicines = dictionary(MEDICINE), pharmacies = dictionary(PHARMACY);
+            BitReader customer = ids(CUSTOMER), medicine = ids(MEDICINE), pharmacy = ids(PHARMACY), quantity = quantities();
+            VarintReader total = varints(TOTAL);
+            List<PurchaseRecord> records = new ArrayList<>(rows);
+            for (int row = 0; row < rows; row++) {
+                records.add(new PurchaseRecord(customers[(int) customer.next()], medicines[(int) medicine.next()],
+                        (int) quantity.next(), total.next(), pharmacies[(int) pharmacy.next()], times[row]));
+            }
+            return records;
+        }
+
+        String[] dictionary(int column) throws IOException {
+            int at = columnStart[column];
+            byte[] packed = new byte[buf.getInt(at)];
+            buf.duplicate().position(at + 9).get(packed);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(packed.length * 3);
+            try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(packed))) {
+                byte[] chunk = new byte[8192];
+                for (int n; (n = in.read(chunk)) > 0; ) {
+                    raw.write(chunk, 0, n);
+                }
+            }
+            ByteBuffer strings = ByteBuffer.wrap(raw.toByteArray());
+            String[] names = new String[buf.getInt(at + 4)];
+            VarintReader reader = new VarintReader(strings, 0);
+            for (int i = 0; i < names.length; i++) {
+                int length = (int) reader.next();
+                names[i] = new String(strings.array(), reader.position, length, StandardCharsets.UTF_8);
+                reader.position += length;
+            }
+            return names;
+        }
+
+        BitReader ids(int column) {
+            int at = columnStart[column];
+            return new BitReader(buf, at + 9 + buf.getInt(at), buf.get(at + 8));
+        }
+
+        BitReader quantities() {
+            int at = columnStart[QUANTITY];
+            return new BitReader(buf, at + 1, buf.get(at));
+        }
+
+        VarintReader varints(int column) {
+            return new VarintReader(buf, columnStart[column]);
+        }
+    }
+
+    private static final class BitReader {
+        private final ByteBuffer buf;
+        private final int start, width;
+        private long bitPosition = 0;
+
+        BitReader(ByteBuffer buf, int start, int width) {
+            this.buf = buf; this.start = start; this.width = width;
+        }
+
+        long next() {
+            if (width == 0) {
+                return 0;
+            }
+            long word = buf.getLong(start + (int) (bitPosition >>> 3));
+            long value = (word << (bitPosition & 7)) >>> (64 - width);
+            bitPosition += width;
+            return value;
+        }
+    }
+
+    private static final class VarintReader {
+        private final ByteBuffer buf;
+        int position;
+
+        VarintReader(ByteBuffer buf, int position) {
+            this.buf = buf; this.position = position;
+        }
+
+        long next() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get(position++);
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
+
+/**
+ * Something that wants to hear about every inventory change in a PharmacyService, e.g. to copy it to another node.
+ * PharmacyService calls these while holding its stock lock, so they must be quick and must not call back into the service.
+ */
+interface InventoryListener {
+    void medicineChanged(Pharmacy pharmacy, Medicine medicine);
+    void medicineRemoved(Pharmacy pharmacy, String medicineName);
+}
+
+/**
+ * One entry in a pharmacy's replication log: the full state of one medicine right after a change, or its removal.
+ * Because each entry carries the whole state rather than "minus 3 units", applying the same entry twice is harmless
+ * and a batch only needs the latest entry for each medicine.
+ */
+class InventoryDelta {
+    private static final long NO_EXPIRY = Long.MIN_VALUE;
+    private final long sequence;
+    private final String medicineName;
+    private final boolean removed;
+    private final String category, supplier;
+    private final long pricePaisa;
+    private final int[] lotQuantities;
+    private final long[] lotExpiryDays; // Epoch days, or NO_EXPIRY.
+
+    private InventoryDelta(long sequence, String medicineName, boolean removed, String category, String supplier,
+                           long pricePaisa, int[] lotQuantities, long[] lotExpiryDays) {
+        this.sequence = sequence; this.medicineName = medicineName; this.removed = removed; this.category = category;
+        this.supplier = supplier; this.pricePaisa = pricePaisa; this.lotQuantities = lotQuantities; this.lotExpiryDays = lotExpiryDays;
+    }
+
+    public static InventoryDelta changed(long sequence, Medicine medicine) {
+        List<StockLot> lots = medicine.getLots();
+        int[] quantities = new int[lots.size()];
+        long[] expiryDays = new long[lots.size()];
+        for (int i = 0; i < quantities.length; i++) {
+            quantities[i] = lots.get(i).getQuantity();
+            expiryDays[i] = lots.get(i).getExpiryDate() == null ? NO_EXPIRY : lots.get(i).getExpiryDate().toEpochDay();
+        }
+        return new InventoryDelta(sequence, medicine.getName(), false, medicine.getCategory(), medicine.getSupplier(),
+                medicine.getPricePaisa(), quantities, expiryDays);
+    }
+
+    public static InventoryDelta removed(long sequence, String medicineName) {
+        return new InventoryDelta(sequence, medicineName, true, null, null, 0, new int[0], new long[0]);
+    }
+
+    public long getSequence() { return sequence; }
+    public String getMedicineName() { return medicineName; }
+    public boolean isRemoved() { return removed; }
+
+    /**
+     * Builds a Medicine with this state, for the receiving node to apply.
+     */
+    public Medicine toMedicine(String pharmacyName) {
+        Medicine medicine = new Medicine(medicineName, category, supplier, pricePaisa, 0, pharmacyName);
+        for (int i = 0; i < lotQuantities.length; i++) {
+            medicine.receiveLot(lotQuantities[i], lotExpiryDays[i] == NO_EXPIRY ? null : LocalDate.ofEpochDay(lotExpiryDays[i]));
+        }
+        return medicine;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(medicineName);
+        out.writeBoolean(removed);
+        if (!removed) {
+            out.writeUTF(category);
+            out.writeUTF(supplier);
+            out.writeLong(pricePaisa);
+            out.writeShort(lotQuantities.length);
+            for (int i = 0; i < lotQuantities.length; i++) {
+                out.writeInt(lotQuantities[i]);
+                out.writeLong(lotExpiryDays[i]);
+            }
+        }
+    }
+
+    static InventoryDelta readFrom(DataInputStream in, long sequence) throws IOException {
+        String name = in.readUTF();
+        if (in.readBoolean()) {
+            return removed(sequence, name);
+        }
+        String category = in.readUTF();
+        String supplier = in.readUTF();
+        long price = in.readLong();
+        int lotCount = in.readUnsignedShort();
+        int[] quantities = new int[lotCount];
+        long[] expiryDays = new long[lotCount];
+        for (int i = 0; i < lotCount; i++) {
+            quantities[i] = in.readInt();
+            expiryDays[i] = in.readLong();
+        }
+        return new InventoryDelta(sequence, name, false, category, supplier, price, quantities, expiryDays);
+    }
+}
+
+/**
+ * The wire format between ReplicationPublisher and ReadReplica. Every message is Deflate-compressed; inside,
+ * the first byte says whether it's a BATCH of log sections or an ACK of the sequence each pharmacy has been applied up to.
+ * The same medicine and category names repeat a lot across a batch, which is what makes compression worth it.
+ */
+class ReplicationMessages {
+    static final byte BATCH = 1;
+    static final byte ACK = 2;
+
+    /**
+     * Part of a batch: one pharmacy's log entries from fromSequence to toSequence, with only the latest entry per medicine.
+     * It also names the pharmacy, so a replica can create a pharmacy it hasn't seen before.
+     */
+    static final class Section {
+        final String pharmacyId, pharmacyName;
+        final Location location;
+        final long fromSequence, toSequence;
+        final List<InventoryDelta> deltas;
+        Section(Pharmacy pharmacy, long fromSequence, long toSequence, List<InventoryDelta> deltas) {
+            this(pharmacy.getId(), pharmacy.getName(), pharmacy.getLocation(), fromSequence, toSequence, deltas);
+        }
+        Section(String pharmacyId, String pharmacyName, Location location, long fromSequence, long toSequence, List<InventoryDelta> deltas) {
+            this.pharmacyId = pharmacyId; this.pharmacyName = pharmacyName; this.location = location;
+            this.fromSequence = fromSequence; this.toSequence = toSequence; this.deltas = deltas;
+        }
+    }
+
+    // The uncompressed batch; ReplicationPublisher compresses it so it can count both sizes.
+    static byte[] batch(List<Section> sections) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(BATCH);
+            out.writeInt(sections.size());
+            for (Section section : sections) {
+                out.writeUTF(section.pharmacyId);
+                out.writeUTF(section.pharmacyName);
+                out.writeDouble(section.location.getLatitude());
+                out.writeDouble(section.location.getLongitude());
+                out.writeLong(section.fromSequence);
+                out.writeLong(section.toSequence);
+                out.writeInt(section.deltas.size());
+                for (InventoryDelta delta : section.deltas) {
+                    delta.writeTo(out);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // A ByteArrayOutputStream can't actually fail.
+        }
+    }
+
+    static byte[] ack(Map<String, Long> appliedSequences) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ACK);
+            out.writeInt(appliedSequences.size());
+            for (Map.Entry<String, Long> e : appliedSequences.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.flush();
+            return compress(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static byte[] compress(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED); // Batches go out every few milliseconds, so speed beats ratio.
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Opens a received message. The caller reads the type byte, then calls readSections or readAck.
+     */
+    static DataInputStream open(byte[] message) {
+        return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(message)));
+    }
+
+    static List<Section> readSections(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Section> sections = new ArrayList<>(count);
+        for (int s = 0; s < count; s++) {
+            String id = in.readUTF();
+            String name = in.readUTF();
+            Location location = new Location(in.readDouble(), in.readDouble());
+            long from = in.readLong();
+            long to = in.readLong();
+            int deltaCount = in.readInt();
+            List<InventoryDelta> deltas = new ArrayList<>(deltaCount);
+            for (int d = 0; d < deltaCount; d++) {
+                deltas.add(InventoryDelta.readFrom(in, to));
+            }
+            sections.add(new Section(id, name, location, from, to, deltas));
+        }
+        return sections;
+    }
+
+    static Map<String, Long> readAck(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Long> applied = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            applied.put(in.readUTF(), in.readLong());
+        }
+        return applied;
+    }
+}
+
+/**
+ * This runs next to the primary PharmacyService and ships its inventory changes to read replicas.
+ *
+ * Every change is appended to an ordered log for its pharmacy, with a sequence number taken under the service's stock lock,
+ * so the log order is the order the changes really happened. On every flush, each replica gets one compressed batch with
+ * what it hasn't been sent yet, keeping only the latest entry per medicine. Replicas acknowledge the sequence they've applied
+ * per pharmacy; anything not acknowledged within the retransmit timeout is sent again from the last acknowledged point,
+ * which is how lost messages and partitions heal. Log entries are dropped once every replica has them.
+ */
+class ReplicationPublisher implements InventoryListener, SimulatedNetwork.Endpoint {
+    private final String nodeId;
+    private final PharmacyService primary;
+    private final SimulatedNetwork network;
+    private final long retransmitMillis;
+    private final Map<String, PharmacyLog> logs = new LinkedHashMap<>();
+    private final Map<String, Map<String, Cursor>> replicas = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+    private long batchesSent, deltasLogged, deltasSent, rawBytes, compressedBytes, retransmissions;
+
+    public ReplicationPublisher(String nodeId, PharmacyService primary, SimulatedNetwork network, long retransmitMillis) {
+        this.nodeId = nodeId;
+        this.primary = primary;
+        this.network = network;
+        this.retransmitMillis = retransmitMillis;
+        network.register(nodeId, this);
+        primary.addInventoryListener(this);
+    }
+
+    /**
+     * Starts sending to a replica. It first gets the current state of every medicine, then the changes as they happen.
+     */
+    public void addReplica(String replicaId) {
+        // I hold the primary's stock lock while logging the full state, so no change can slip in between.
+        primary.forEachMedicine((pharmacy, medicine) -> {
+            synchronized (this) {
+                replicas.computeIfAbsent(replicaId, id -> new HashMap<>())
+                        .computeIfAbsent(pharmacy.getId(), id -> new Cursor(logFor(pharmacy).lastSequence));
+                medicineChanged(pharmacy, medicine);
+            }
+        });
+        synchronized (this) {
+            replicas.computeIfAbsent(replicaId, id -> new HashMap<>());
+        }
+    }
+
+    public void start(long flushMillis) {
+        flusher.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        flusher.shutdownNow();
+    }
+
+    @Override
+    public synchronized void medicineChanged(Pharmacy pharmacy, Medicine medicine) {
+        PharmacyLog log = logFor(pharmacy);
+        log.append(InventoryDelta.changed(log.lastSequence + 1, medicine));
+        deltasLogged++;
+    }
+
+    @Override
+    public synchronized void medicineRemoved(Pharmacy pharmacy, String medicineName) {
+        PharmacyLog log = logFor(pharmacy);
+        log.append(InventoryDelta.removed(log.lastSequence + 1, medicineName));
+        deltasLogged++;
+    }
+
+    /**
+     * Sends each replica one batch with everything it's missing. It runs on the flusher thread, but can also be called directly.
+     */
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Map<String, Cursor>> replica : replicas.entrySet()) {
+            List<ReplicationMessages.Section> sections = new ArrayList<>();
+            for (PharmacyLog log : logs.values()) {
+                Cursor cursor = replica.getValue().computeIfAbsent(log.pharmacy.getId(), id -> new Cursor(0));
+                long from;
+                if (cursor.acked < cursor.sent && now - cursor.waitingSinceMillis >= retransmitMillis) {
+                    from = cursor.acked + 1; // Lost, or still stuck behind a partition: start again from what they have.
+                    cursor.waitingSinceMillis = now;
+                    retransmissions++;
+                } else if (cursor.sent < log.lastSequence) {
+                    from = cursor.sent + 1;
+                    if (cursor.acked == cursor.sent) {
+                        cursor.waitingSinceMillis = now;
+                    }
+                } else {
+                    continue;
+                }
+                List<InventoryDelta> deltas = log.latestPerMedicineFrom(from);
+                // A new replica's first entries are the full state of the pharmacy, so it can take them as the start of the log.
+                long wireFrom = (from == cursor.baseline + 1) ? 1 : from;
+                sections.add(new ReplicationMessages.Section(log.pharmacy, wireFrom, log.lastSequence, deltas));
+                deltasSent += deltas.size();
+                cursor.sent = log.lastSequence;
+            }
+            if (!sections.isEmpty()) {
+                byte[] raw = ReplicationMessages.batch(sections);
+                byte[] message = ReplicationMessages.compress(raw);
+                rawBytes += raw.length;
+                compressedBytes += message.length;
+                batchesSent++;
+                network.send(nodeId, replica.getKey(), message);
+            }
+        }
+    }
+
+    @Override
+    public void receive(String from, byte[] message) {
+        Map<String, Long> applied;
+        try {
+            DataInputStream in = ReplicationMessages.open(message);
+            if (in.readByte() != ReplicationMessages.ACK) {
+                return;
+            }
+            applied = ReplicationMessages.readAck(in);
+        } catch (IOException e) {
+            return; // A damaged ack just means the next one (or a retransmit) does the job.
+        }
+        synchronized (this) {
+            Map<String, Cursor> cursors = replicas.get(from);
+            if (cursors == null) {
+                return;
+            }
+            for (Map.Entry<String, Long> e : applied.entrySet()) {
+                Cursor cursor = cursors.get(e.getKey());
+                if (cursor != null && e.getValue() > cursor.acked) {
+                    cursor.acked = e.getValue();
+                    cursor.sent = Math.max(cursor.sent, cursor.acked);
+                    cursor.waitingSinceMillis = System.currentTimeMillis(); // Progress, so the retransmit timer starts over.
+                }
+            }
+            trimLogs();
+        }
+    }
+
+    /**
+     * True when every replica has acknowledged every change logged so far.
+     */
+    public synchronized boolean isCaughtUp() {
+        for (Map<String, Cursor> cursors : replicas.values()) {
+            for (PharmacyLog log : logs.values()) {
+                Cursor cursor = cursors.get(log.pharmacy.getId());
+                if (cursor == null || cursor.acked < log.lastSequence) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public synchronized String getStats() {
+        return String.format("%,d changes logged, %,d batches with %,d entries sent (%,d retransmitted sections), "
+                + "%,d bytes raw, %,d bytes compressed", deltasLogged, batchesSent, deltasSent, retransmissions, rawBytes, compressedBytes);
+    }
+
+    private PharmacyLog logFor(Pharmacy pharmacy) {
+        return logs.computeIfAbsent(pharmacy.getId(), id -> new PharmacyLog(pharmacy));
+    }
+
+    // Drops the entries every replica has acknowledged.
+    private void trimLogs() {
+        for (PharmacyLog log : logs.values()) {
+            long everyone = log.lastSequence;
+            for (Map<String, Cursor> cursors : replicas.values()) {
+                Cursor cursor = cursors.get(log.pharmacy.getId());
+                everyone = Math.min(everyone, cursor == null ? 0 : cursor.acked);
+            }
+            log.trimThrough(everyone);
+        }
+    }
+
+    private static class PharmacyLog {
+        final Pharmacy pharmacy;
+        final ArrayDeque<InventoryDelta> entries = new ArrayDeque<>();
+        long lastSequence = 0;
+        PharmacyLog(Pharmacy pharmacy) { this.pharmacy = pharmacy; }
+
+        void append(InventoryDelta delta) {
+            entries.addLast(delta);
+            lastSequence = delta.getSequence();
+        }
+
+        void trimThrough(long sequence) {
+            while (!entries.isEmpty() && entries.peekFirst().getSequence() <= sequence) {
+                entries.pollFirst();
+            }
+        }
+
+        // The entries from 'from' on, keeping only the last one for each medicine, in the order of those last changes.
+        List<InventoryDelta> latestPerMedicineFrom(long from) {
+            LinkedHashMap<String, InventoryDelta> latest = new LinkedHashMap<>();
+            for (InventoryDelta delta : entries) {
+                if (delta.getSequence() >= from) {
+                    latest.remove(delta.getMedicineName());
+                    latest.put(delta.getMedicineName(), delta);
+                }
+            }
+            return new ArrayList<>(latest.values());
+        }
+    }
+
+    // How far one replica is in one pharmacy's log. The replica joined after entry 'baseline'.
+    private static class Cursor {
+        final long baseline;
+        long sent, acked;
+        long waitingSinceMillis; // When the oldest unacknowledged entry was sent, or the last ack arrived.
+        Cursor(long baseline) { this.baseline = baseline; this.sent = baseline; this.acked = baseline; }
+    }
+}
+
+/**
+ * A read-only copy of the catalog on another node, kept up to date by a ReplicationPublisher.
+ * Buyers can search it locally; it answers with whatever it has applied so far, so it may lag the primary a little.
+ *
+ * Sections are applied in log order per pharmacy: a section that starts past the next expected sequence (an earlier batch
+ * was lost or overtaken) is ignored and comes back with the retransmit, and one that's already been applied is skipped.
+ * Each batch is acknowledged with the sequences applied so far.
+ */
+class ReadReplica implements SimulatedNetwork.Endpoint {
+    private final String nodeId;
+    private final SimulatedNetwork network;
+    private final PharmacyService service = new PharmacyService(new ArrayList<>());
+    private final Map<String, Long> appliedSequences = new HashMap<>();
+    private final Map<String, Pharmacy> pharmaciesById = new HashMap<>();
+    private long batchesApplied, sectionsSkipped;
+
+    public ReadReplica(String nodeId, SimulatedNetwork network) {
+        this.nodeId = nodeId;
+        this.network = network;
+        network.register(nodeId, this);
+    }
+
+    @Override
+    public void receive(String from, byte[] message) {
+        List<ReplicationMessages.Section> sections;
+        try {
+            DataInputStream in = ReplicationMessages.open(message);
+            if (in.readByte() != ReplicationMessages.BATCH) {
+                return;
+            }
+            sections = ReplicationMessages.readSections(in);
+        } catch (IOException e) {
+            return; // Not acknowledged, so the publisher sends it again.
+        }
+        byte[] ack;
+        synchronized (this) {
+            for (ReplicationMessages.Section section : sections) {
+                long applied = appliedSequences.getOrDefault(section.pharmacyId, 0L);
+                if (section.toSequence <= applied || section.fromSequence > applied + 1) {
+                    sectionsSkipped++;
+                    continue;
+                }
+                Pharmacy pharmacy = pharmaciesById.computeIfAbsent(section.pharmacyId,
+                        id -> service.addPharmacy(new Pharmacy(id, section.pharmacyName, section.location)));
+                for (InventoryDelta delta : section.deltas) {
+                    if (delta.isRemoved()) {
+                        service.deleteMedicine(pharmacy.getName(), delta.getMedicineName());
+                    } else {
+                        service.applyReplicated(pharmacy, delta.toMedicine(pharmacy.getName()));
+                    }
+                }
+                appliedSequences.put(section.pharmacyId, section.toSequence);
+            }
+            batchesApplied++;
+            ack = ReplicationMessages.ack(appliedSequences);
+        }
+        network.send(nodeId, from, ack);
+    }
+
+    public List<SearchResult> searchMedicine(String searchTerm, Location userLocation) {
+        return service.searchMedicine(searchTerm, userLocation);
+    }
+
+    public List<SearchResult> searchMedicine(String searchTerm, Location userLocation, FacetFilter filter) {
+        return service.searchMedicine(searchTerm, userLocation, filter);
+    }
+
+    public Medicine getMedicineDetails(String pharmacyName, String medicineName) {
+        return service.getMedicineDetails(pharmacyName, medicineName);
+    }
+
+    public synchronized long getAppliedSequence(String pharmacyId) {
+        return appliedSequences.getOrDefault(pharmacyId, 0L);
+    }
+
+    public synchronized String getStats() {
+        return String.format("%s: %,d batches applied, %,d out-of-order or duplicate sections skipped", nodeId, batchesApplied, sectionsSkipped);
+    }
+}
+
+/**
+ * An in-process stand-in for the network between pharmacy nodes, so replication can be tried out in one JVM.
+ * Messages are delivered on one background thread after a random latency, can be dropped at random, and are lost
+ * while a link is partitioned (including messages already in flight when it's cut).
+ */
+class SimulatedNetwork {
+    /**
+     * A node on the network. receive() runs on the network's delivery thread.
+     */
+    interface Endpoint {
+        void receive(String from, byte[] message);
+    }
+
+    private final Map<String, Endpoint> endpoints = new HashMap<>();
+    private final Set<String> cutLinks = new HashSet<>();
+    private final Random random;
+    private final long minLatencyMillis, maxLatencyMillis;
+    private final double dropRate;
+    private final ScheduledExecutorService deliveries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "simulated-network");
+        t.setDaemon(true);
+        return t;
+    });
+    private long sent, dropped, bytes;
+
+    public SimulatedNetwork(long seed, long minLatencyMillis, long maxLatencyMillis, double dropRate) {
+        this.random = new Random(seed);
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.dropRate = dropRate;
+    }
+
+    public synchronized void register(String node, Endpoint endpoint) {
+        endpoints.put(node, endpoint);
+    }
+
+    // Cuts the link between two nodes, in both directions.
+    public synchronized void partition(String a, String b) {
+        cutLinks.add(link(a, b));
+    }
+
+    public synchronized void heal(String a, String b) {
+        cutLinks.remove(link(a, b));
+    }
+
+    public synchronized void send(String from, String to, byte[] message) {
+        sent++;
+        bytes += message.length;
+        Endpoint target = endpoints.get(to);
+        if (target == null || cutLinks.contains(link(from, to)) || random.nextDouble() < dropRate) {
+            dropped++;
+            return;
+        }
+        long latency = minLatencyMillis + (long) (random.nextDouble() * (maxLatencyMillis - minLatencyMillis));
+        deliveries.schedule(() -> {
+            synchronized (this) {
+                if (cutLinks.contains(link(from, to))) {
+                    dropped++;
+                    return;
+                }
+            }
+            target.receive(from, message);
+        }, latency, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        deliveries.shutdownNow();
+    }
+
+    public synchronized String getStats() {
+        return String.format("%,d messages (%,d bytes), %,d dropped", sent, bytes, dropped);
+    }
+
+    private static String link(String a, String b) {
+        return a.compareTo(b) < 0 ? a + "|" + b : b + "|" + a;
+    }
+}
+
+/**
+ * Maps keys (pharmacy ids) to nodes with consistent hashing. Each node is placed at many points ("virtual nodes")
+ * around a 64-bit ring, and a key belongs to the first node point at or after its own hash. Adding a node only takes
+ * over the keys just before its points, about 1/N of them, instead of reshuffling almost everything like hash % N would.
+ */
+class ConsistentHashRing {
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    public void addNode(String node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return (owner != null ? owner : ring.firstEntry()).getValue(); // Past the last point, the ring wraps around.
+    }
+
+    public boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    // FNV-1a, then MurmurHash3's final mix. String.hashCode() alone puts similar ids like "p17" and "p18" next to each other.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
+
+/**
+ * This router splits the catalog across several PharmacyService shards, each owning the pharmacies that
+ * ConsistentHashRing assigns to it by pharmacy id.
+ *
+ * Searches go to every shard in parallel. Each shard already returns its matches sorted (match quality, then distance),
+ * so the router merges them with a k-way merge and stops after 'limit' results. Buying and looking up a medicine
+ * go straight to the one shard that owns the pharmacy.
+ *
+ * Adding a shard moves only the pharmacies the new shard now owns. The move takes the write lock, so requests wait
+ * for it instead of seeing a pharmacy in two shards or in none.
+ */
+class ShardRouter {
+    private static final Comparator<SearchResult> RESULT_ORDER =
+        Comparator.comparingInt(SearchResult::getMatchScore).thenComparingDouble(SearchResult::getDistance);
+    private final ConsistentHashRing ring;
+    private final Map<String, PharmacyService> shards = new LinkedHashMap<>();
+    private final Map<String, String> pharmacyIds = new HashMap<>(); // Point operations name the pharmacy, the ring wants its id.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService fanOut;
+
+    public ShardRouter(int virtualNodesPerShard, int fanOutThreads) {
+        this.ring = new ConsistentHashRing(virtualNodesPerShard);
+        this.fanOut = Executors.newFixedThreadPool(fanOutThreads, r -> {
+            Thread t = new Thread(r, "shard-fan-out");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Adds an empty shard and moves over the pharmacies it now owns.
+     * @return the number of pharmacies moved.
+     */
+    public int addShard(String shardId) {
+        lock.writeLock().lock();
+        try {
+            PharmacyService added = new PharmacyService(new ArrayList<>());
+            ring.addNode(shardId);
+            int moved = 0;
+            for (Map.Entry<String, PharmacyService> shard : shards.entrySet()) {
+                List<Pharmacy> leaving = new ArrayList<>();
+                shard.getValue().forEachPharmacy(p -> {
+                    if (ring.nodeFor(p.getId()).equals(shardId)) {
+                        leaving.add(p);
+                    }
+                });
+                for (Pharmacy p : leaving) {
+                    added.addPharmacy(shard.getValue().removePharmacy(p.getName()));
+                    moved++;
+                }
+            }
+            shards.put(shardId, added);
+            return moved;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addPharmacy(Pharmacy pharmacy) {
+        lock.writeLock().lock();
+        try {
+            if (ring.isEmpty()) {
+                throw new IllegalStateException("Add a shard before adding pharmacy " + pharmacy.getName());
+            }
+            pharmacyIds.put(pharmacy.getName(), pharmacy.getId());
+            shards.get(ring.nodeFor(pharmacy.getId())).addPharmacy(pharmacy);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Searches every shard at once and returns the best 'limit' results overall, in the same order a single service would.
+     */
+    public List<SearchResult> searchMedicine(String searchTerm, Location userLocation, int limit) {
+        lock.readLock().lock();
+        try {
+            List<Future<List<SearchResult>>> pending = new ArrayList<>(shards.size());
+            for (PharmacyService shard : shards.values()) {
+                pending.add(fanOut.submit(() -> shard.searchMedicine(searchTerm, userLocation)));
+            }
+            List<List<SearchResult>> perShard = new ArrayList<>(pending.size());
+            for (Future<List<SearchResult>> f : pending) {
+                perShard.add(f.get());
+            }
+            return mergeTop(perShard, limit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A shard failed to search", e.getCause());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean buyMedicine(User user, String pharmacyName, String medicineName, int quantity) {
+        lock.readLock().lock();
+        try {
+            PharmacyService shard = ownerOf(pharmacyName);
+            return shard != null && shard.buyMedicine(user, pharmacyName, medicineName, quantity);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Medicine getMedicineDetails(String pharmacyName, String medicineName) {
+        lock.readLock().lock();
+        try {
+            PharmacyService shard = ownerOf(pharmacyName);
+            return shard == null ? null : shard.getMedicineDetails(pharmacyName, medicineName);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * How many pharmacies each shard owns, to check the ring spreads them evenly.
+     */
+    public Map<String, Integer> getShardSizes() {
+        lock.readLock().lock();
+        try {
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            for (Map.Entry<String, PharmacyService> shard : shards.entrySet()) {
+                int[] count = {0};
+                shard.getValue().forEachPharmacy(p -> count[0]++);
+                sizes.put(shard.getKey(), count[0]);
+            }
+            return sizes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void shutdown() {
+        fanOut.shutdownNow();
+    }
+
+    private PharmacyService ownerOf(String pharmacyName) {
+        String id = pharmacyIds.get(pharmacyName);
+        return id == null ? null : shards.get(ring.nodeFor(id));
+    }
+
+    // A k-way merge: the heap holds the next unused result of each shard, so this costs O(limit log shards).
+    static List<SearchResult> mergeTop(List<List<SearchResult>> sortedLists, int limit) {
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) ->
+            RESULT_ORDER.compare(sortedLists.get(a[0]).get(a[1]), sortedLists.get(b[0]).get(b[1])));
+        for (int i = 0; i < sortedLists.size(); i++) {
+            if (!sortedLists.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+        List<SearchResult> merged = new ArrayList<>(limit);
+        while (merged.size() < limit && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<SearchResult> list = sortedLists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+}
+
+class DataService {
+    private static List<Pharmacy> pharmacyCache = null;
+    // If the "ems.snapshot" system property points at a file, I load the catalog from that binary snapshot
+    // instead of rebuilding it by hand. If the file is missing or damaged, I rebuild and write a fresh one.
+    private static final String SNAPSHOT_PATH = System.getProperty("ems.snapshot");
+
+    public static List<Pharmacy> getPharmacies() {
+        // I use a cache (a stored copy) so that the data is created only once.
+        // This makes our data persistent for the app's session (stock updates are remembered).
+        if (pharmacyCache == null) {
+            pharmacyCache = (SNAPSHOT_PATH != null) ? loadOrCreateSnapshot(Paths.get(SNAPSHOT_PATH)) : buildDefaultCatalog();
+        }
+        return pharmacyCache;
+    }
+
+    /**
+     * Loads the catalog from a snapshot file, falling back to the hand-built catalog when the file can't be used.
+     */
+    private static List<Pharmacy> loadOrCreateSnapshot(Path snapshotFile) {
+        if (Files.exists(snapshotFile)) {
+            try {
+                return CatalogSnapshot.read(snapshotFile);
+            } catch (IOException e) {
+                System.err.println("Could not load catalog snapshot, rebuilding it: " + e.getMessage());
+            }
+        }
+        List<Pharmacy> catalog = buildDefaultCatalog();
+        try {
+            CatalogSnapshot.write(catalog, snapshotFile);
+        } catch (IOException e) {
+            // The app still works without a snapshot, it just starts a little slower next time.
+            e.printStackTrace();
+        }
+        return catalog;
+    }
+
+    private static List<Pharmacy> buildDefaultCatalog() {
+        List<Pharmacy> catalog = new ArrayList<>();
+        Pharmacy p1 = new Pharmacy("p1", "Lazz Pharma (Uttara)", new Location(23.8737, 90.3965));
+        p1.addMedicine(new Medicine("Napa Extend", "Painkiller", "Beximco", Money.ofTaka(6.00), 200, p1.getName()));
+        p1.addMedicine(new Medicine("Fexo 120", "Antihistamine", "Square", Money.ofTaka(8.00), 150, p1.getName()));
+        p1.addMedicine(new Medicine("Monas 10", "Asthma", "Acme", Money.ofTaka(12.50), 90, p1.getName()));
+        catalog.add(p1);
+
+        Pharmacy p2 = new Pharmacy("p2", "Medex Pharmacy (Gulshan)", new Location(23.7949, 90.4143));
+        p2.addMedicine(new Medicine("Seclo 20", "Antacid", "Square", Money.ofTaka(7.00), 300, p2.getName()));
+        p2.addMedicine(new Medicine("Ceevit", "Vitamin", "GSK", Money.ofTaka(3.00), 500, p2.getName(), LocalDate.now().plusDays(25)));
+        p2.addMedicine(new Medicine("Napa Extend", "Painkiller", "Beximco", Money.ofTaka(6.10), 180, p2.getName()));
+        catalog.add(p2);
+
+        Pharmacy p3 = new Pharmacy("p3", "Health Hub (Dhanmondi)", new Location(23.7465, 90.3765));
+        p3.addMedicine(new Medicine("Tufnil", "Painkiller", "Opsonin", Money.ofTaka(5.00), 120, p3.getName()));
+        Medicine azithromycin = new Medicine("Azithromycin 500", "Antibiotic", "Beximco", Money.ofTaka(35.00), 60, p3.getName(),
+            LocalDate.now().plusMonths(8));
+        // An older batch that expires soon, so the first 20 units sold come from it (FEFO).
+        azithromycin.receiveLot(20, LocalDate.now().plusDays(12));
+        p3.addMedicine(azithromycin);
+        p3.addMedicine(new Medicine("Finix 20", "Antacid", "Opsonin", Money.ofTaka(7.50), 220, p3.getName()));
+        catalog.add(p3);
+
+        Pharmacy p4 = new Pharmacy("p4", "Mirpur City Pharma", new Location(23.8059, 90.3493));
+        p4.addMedicine(new Medicine("Napa Extend", "Painkiller", "Beximco", Money.ofTaka(5.90), 250, p4.getName()));
+        p4.addMedicine(new Medicine("Seclo 20", "Antacid", "Square", Money.ofTaka(7.10), 180, p4.getName()));
+        p4.addMedicine(new Medicine("Fexo 120", "Antihistamine", "Square", Money.ofTaka(8.25), 130, p4.getName()));
+        catalog.add(p4);
+        return catalog;
+    }
+
+    public static Map<String, Location> getPredefinedLocations() {
         // I use a TreeMap to keep the list of locations sorted alphabetically in the dropdown.
         Map<String, Location> locations = new TreeMap<>();
         locations.put("Banani", new Location(23.7925, 90.4078));
@@ -921,54 +4249,949 @@ class DataService {
         locations.put("Uttara", new Location(23.8737, 90.3965));
         return locations;
     }
-}
+}
+
+/**
+ * Builds a city-sized synthetic catalog for load testing, shaped like the real one: pharmacies cluster around
+ * the areas in DataService.getPredefinedLocations(), popular medicines (a Zipf distribution) are stocked almost everywhere
+ * while rare ones only in a few places, and each pharmacy prices a medicine a little differently.
+ * The same seed always gives the same catalog.
+ */
+class CityCatalogGenerator {
+    private static final String[] SYLLABLES = {"na", "pa", "fe", "xo", "mo", "sec", "lo", "cee", "vit", "tuf", "nil", "fi",
+                                               "nix", "zi", "thro", "my", "cin", "max", "pro", "ra", "bi", "tor", "zen", "ca", "dol", "ri"};
+    private static final String[] CATEGORIES = {"Painkiller", "Antibiotic", "Antacid", "Antihistamine", "Vitamin", "Asthma",
+                                                "Antidiabetic", "Cardiac", "Dermatology"};
+    private static final String[] SUPPLIERS = {"Beximco", "Square", "Acme", "Opsonin", "GSK", "Incepta", "Renata", "ACI"};
+    private static final double KM_PER_DEGREE = 111.0; // Close enough at Dhaka's latitude for scattering points.
+
+    private final long seed;
+    private final int pharmacyCount, skuCount, skusPerPharmacy;
+    private final double priceSpread, clusterRadiusKm;
+
+    /**
+     * @param priceSpread how much one pharmacy's price may differ from the usual price, e.g. 0.1 for about +-10%.
+     * @param clusterRadiusKm how far (one standard deviation) pharmacies spread out from the centre of their area.
+     */
+    public CityCatalogGenerator(long seed, int pharmacyCount, int skuCount, int skusPerPharmacy, double priceSpread, double clusterRadiusKm) {
+        this.seed = seed; this.pharmacyCount = pharmacyCount; this.skuCount = skuCount;
+        this.skusPerPharmacy = Math.min(skusPerPharmacy, skuCount);
+        this.priceSpread = priceSpread; this.clusterRadiusKm = clusterRadiusKm;
+    }
+
+    /**
+     * The medicine names, most popular first. WorkloadGenerator uses the same ranking to pick what buyers look for.
+     */
+    public String[] skuNames() {
+        Random random = new Random(seed);
+        Set<String> names = new LinkedHashSet<>();
+        String[] strengths = {"", " 5", " 10", " 20", " 120", " 250", " 500"};
+        while (names.size() < skuCount) {
+            StringBuilder name = new StringBuilder();
+            for (int syllable = 2 + random.nextInt(2); syllable > 0; syllable--) {
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+            names.add(name + strengths[random.nextInt(strengths.length)]);
+        }
+        return names.toArray(new String[0]);
+    }
+
+    public List<Pharmacy> generate() {
+        String[] names = skuNames();
+        Random random = new Random(seed + 1);
+        // Every SKU gets one category, supplier and usual price; prices are log-normal around 10 taka, mostly between 1.50 and 75.
+        String[] categories = new String[skuCount];
+        String[] suppliers = new String[skuCount];
+        long[] usualPaisa = new long[skuCount];
+        for (int i = 0; i < skuCount; i++) {
+            categories[i] = CATEGORIES[random.nextInt(CATEGORIES.length)];
+            suppliers[i] = SUPPLIERS[random.nextInt(SUPPLIERS.length)];
+            usualPaisa[i] = Math.max(100, Math.round(Math.exp(Math.log(1000) + random.nextGaussian()) / 10) * 10);
+        }
+        Location[] areas = DataService.getPredefinedLocations().values().toArray(new Location[0]);
+        ZipfSampler popularity = new ZipfSampler(skuCount, 1.0, random);
+        List<Pharmacy> catalog = new ArrayList<>(pharmacyCount);
+        for (int i = 0; i < pharmacyCount; i++) {
+            Location area = areas[random.nextInt(areas.length)];
+            Location where = new Location(area.getLatitude() + random.nextGaussian() * clusterRadiusKm / KM_PER_DEGREE,
+                                          area.getLongitude() + random.nextGaussian() * clusterRadiusKm / KM_PER_DEGREE);
+            Pharmacy p = new Pharmacy("p" + (i + 1), "Pharmacy " + (i + 1), where);
+            Set<Integer> stocked = new HashSet<>();
+            // Drawing by popularity stalls once the popular SKUs are taken, so I cap the tries and fill up uniformly.
+            for (int tries = 0; stocked.size() < skusPerPharmacy && tries < skusPerPharmacy * 20; tries++) {
+                stocked.add(popularity.next());
+            }
+            while (stocked.size() < skusPerPharmacy) {
+                stocked.add(random.nextInt(skuCount));
+            }
+            for (int sku : stocked) {
+                long price = Math.max(1, Math.round(usualPaisa[sku] * (1 + priceSpread * random.nextGaussian())));
+                LocalDate expiry = random.nextInt(4) == 0 ? LocalDate.now().plusDays(30 + random.nextInt(700)) : null;
+                p.addMedicine(new Medicine(names[sku], categories[sku], suppliers[sku], price, random.nextInt(400), p.getName(), expiry));
+            }
+            catalog.add(p);
+        }
+        return catalog;
+    }
+}
+
+/**
+ * Draws ranks 0..n-1 with probability proportional to 1/(rank+1)^s, so rank 0 is the most common.
+ * It precomputes the cumulative distribution once and then each draw is a binary search.
+ */
+class ZipfSampler {
+    private final double[] cumulative;
+    private final Random random;
+
+    public ZipfSampler(int n, double s, Random random) {
+        this.cumulative = new double[n];
+        this.random = random;
+        double total = 0;
+        for (int rank = 0; rank < n; rank++) {
+            total += 1.0 / Math.pow(rank + 1, s);
+            cumulative[rank] = total;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulative[rank] /= total;
+        }
+    }
+
+    public int next() {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cumulative.length - 1);
+    }
+}
+
+/**
+ * One request in a load test: a buyer search, a purchase, or an admin restocking and repricing a medicine.
+ * A trace is a text file with one operation per tab-separated line, so it can be checked by eye and replayed exactly.
+ */
+class WorkloadOp {
+    enum Type { SEARCH, BUY, EDIT }
+
+    private final Type type;
+    private final String term;          // SEARCH: what the buyer typed.
+    private final String pharmacyName;  // BUY and EDIT.
+    private final String medicineName;  // BUY and EDIT.
+    private final int quantity;         // BUY: units bought. EDIT: units added.
+    private final long pricePaisa;      // EDIT: the new price.
+    private final Location location;    // SEARCH and BUY: where the buyer is.
+
+    private WorkloadOp(Type type, String term, String pharmacyName, String medicineName, int quantity, long pricePaisa, Location location) {
+        this.type = type; this.term = term; this.pharmacyName = pharmacyName; this.medicineName = medicineName;
+        this.quantity = quantity; this.pricePaisa = pricePaisa; this.location = location;
+    }
+
+    public static WorkloadOp search(String term, Location location) {
+        return new WorkloadOp(Type.SEARCH, term, null, null, 0, 0, location);
+    }
+
+    public static WorkloadOp buy(String pharmacyName, String medicineName, int quantity, Location location) {
+        return new WorkloadOp(Type.BUY, null, pharmacyName, medicineName, quantity, 0, location);
+    }
+
+    public static WorkloadOp edit(String pharmacyName, String medicineName, int addedStock, long pricePaisa) {
+        return new WorkloadOp(Type.EDIT, null, pharmacyName, medicineName, addedStock, pricePaisa, null);
+    }
+
+    public Type getType() { return type; }
+
+    /**
+     * Runs this operation against a service. Returns how many results or units it produced, so two replays can be compared.
+     */
+    public long applyTo(PharmacyService service, User user) {
+        switch (type) {
+            case SEARCH:
+                return service.searchMedicine(term, location).size();
+            case BUY:
+                return service.buyMedicine(user, pharmacyName, medicineName, quantity) ? quantity : 0;
+            default:
+                Medicine current = service.getMedicineDetails(pharmacyName, medicineName);
+                if (current == null) {
+                    return 0;
+                }
+                service.updateMedicine(new Medicine(medicineName, current.getCategory(), current.getSupplier(), pricePaisa,
+                        current.getStock() + quantity, pharmacyName, current.getEarliestExpiry()));
+                return quantity;
+        }
+    }
+
+    String toLine() {
+        switch (type) {
+            case SEARCH:
+                return "S\t" + term + "\t" + location.getLatitude() + "\t" + location.getLongitude();
+            case BUY:
+                return "B\t" + pharmacyName + "\t" + medicineName + "\t" + quantity + "\t" + location.getLatitude() + "\t" + location.getLongitude();
+            default:
+                return "E\t" + pharmacyName + "\t" + medicineName + "\t" + quantity + "\t" + pricePaisa;
+        }
+    }
+
+    static WorkloadOp fromLine(String line) throws IOException {
+        String[] f = line.split("\t", -1);
+        try {
+            switch (f[0]) {
+                case "S":
+                    return search(f[1], new Location(Double.parseDouble(f[2]), Double.parseDouble(f[3])));
+                case "B":
+                    return buy(f[1], f[2], Integer.parseInt(f[3]), new Location(Double.parseDouble(f[4]), Double.parseDouble(f[5])));
+                case "E":
+                    return edit(f[1], f[2], Integer.parseInt(f[3]), Long.parseLong(f[4]));
+                default:
+                    throw new IOException("Unknown operation in trace: " + line);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Damaged trace line: " + line, e);
+        }
+    }
+}
+
+/**
+ * Generates buyer and admin traffic for a CityCatalogGenerator catalog. Buyers stand near one of the predefined areas
+ * and look for medicines by Zipfian popularity; some type only the start of a name or make a typo, as people do.
+ * Purchases go to a pharmacy that stocks the medicine, and admin edits restock and reprice medicines.
+ */
+class WorkloadGenerator {
+    private final String[] skuNames;
+    private final List<Pharmacy> catalog;
+    private final double searchShare, buyShare; // Whatever is left over are admin edits.
+    private final double clusterRadiusKm;
+
+    public WorkloadGenerator(CityCatalogGenerator catalogGenerator, List<Pharmacy> catalog, double searchShare, double buyShare, double clusterRadiusKm) {
+        this.skuNames = catalogGenerator.skuNames();
+        this.catalog = catalog;
+        this.searchShare = searchShare;
+        this.buyShare = buyShare;
+        this.clusterRadiusKm = clusterRadiusKm;
+    }
+
+    public List<WorkloadOp> generate(long seed, int count) {
+        Random random = new Random(seed);
+        ZipfSampler popularity = new ZipfSampler(skuNames.length, 1.0, random);
+        ZipfSampler busyPharmacies = new ZipfSampler(catalog.size(), 0.8, random);
+        Location[] areas = DataService.getPredefinedLocations().values().toArray(new Location[0]);
+        // Which pharmacies stock each medicine, so a purchase only goes where it can succeed (stock allowing).
+        Map<String, List<Pharmacy>> stockists = new HashMap<>();
+        for (Pharmacy p : catalog) {
+            for (Medicine m : p.getInventory()) {
+                stockists.computeIfAbsent(m.getName(), n -> new ArrayList<>()).add(p);
+            }
+        }
+        List<WorkloadOp> ops = new ArrayList<>(count);
+        while (ops.size() < count) {
+            double roll = random.nextDouble();
+            String medicine = skuNames[popularity.next()];
+            if (roll < searchShare) {
+                Location area = areas[random.nextInt(areas.length)];
+                Location buyer = new Location(area.getLatitude() + random.nextGaussian() * clusterRadiusKm / 111.0,
+                                              area.getLongitude() + random.nextGaussian() * clusterRadiusKm / 111.0);
+                ops.add(WorkloadOp.search(typed(medicine, random), buyer));
+            } else if (roll < searchShare + buyShare) {
+                List<Pharmacy> sellers = stockists.get(medicine);
+                if (sellers == null) {
+                    continue;
+                }
+                Pharmacy seller = sellers.get(random.nextInt(sellers.size()));
+                ops.add(WorkloadOp.buy(seller.getName(), medicine, 1 + random.nextInt(3), seller.getLocation()));
+            } else {
+                Pharmacy p = catalog.get(busyPharmacies.next());
+                Medicine m = p.getInventory().get(random.nextInt(p.getInventory().size()));
+                ops.add(WorkloadOp.edit(p.getName(), m.getName(), 50 + random.nextInt(200), Math.max(1, m.getPricePaisa() + 10 * (random.nextInt(11) - 5))));
+            }
+        }
+        return ops;
+    }
+
+    // What a buyer actually types: usually the whole name, sometimes just the start of it, sometimes with one letter wrong.
+    private static String typed(String name, Random random) {
+        int style = random.nextInt(10);
+        if (style < 6 || name.length() < 5) {
+            return name;
+        } else if (style < 8) {
+            return name.substring(0, 3 + random.nextInt(name.length() - 3));
+        }
+        int at = 1 + random.nextInt(name.length() - 2);
+        return name.substring(0, at) + (char) ('a' + random.nextInt(26)) + name.substring(at + 1);
+    }
+
+    public static void write(List<WorkloadOp> ops, Path trace) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(trace, StandardCharsets.UTF_8)) {
+            for (WorkloadOp op : ops) {
+                out.write(op.toLine());
+                out.newLine();
+            }
+        }
+    }
+
+    public static List<WorkloadOp> read(Path trace) throws IOException {
+        List<WorkloadOp> ops = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(trace, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    ops.add(WorkloadOp.fromLine(line));
+                }
+            }
+        }
+        return ops;
+    }
+}
+
+/**
+ * Replays a trace against a PharmacyService at a fixed target rate, one operation after another in trace order,
+ * so the same trace on the same catalog always does exactly the same thing.
+ *
+ * Each operation has a scheduled start time (start + i / rate), and its latency is measured from that time, not from
+ * when it actually got to run. If the service falls behind, the waiting shows up in the latencies, as it would for real
+ * buyers, instead of the replay quietly slowing down to match the service.
+ */
+class LoadReplayer {
+    private final PharmacyService service;
+    private final User user = new User("Load Test");
+
+    public LoadReplayer(PharmacyService service) {
+        this.service = service;
+    }
+
+    public LoadReport replay(List<WorkloadOp> ops, double targetOpsPerSecond) {
+        Map<WorkloadOp.Type, long[]> latencies = new EnumMap<>(WorkloadOp.Type.class);
+        Map<WorkloadOp.Type, Integer> counts = new EnumMap<>(WorkloadOp.Type.class);
+        for (WorkloadOp.Type type : WorkloadOp.Type.values()) {
+            latencies.put(type, new long[ops.size()]);
+            counts.put(type, 0);
+        }
+        long[] all = new long[ops.size()];
+        long outcome = 0;
+        double intervalNanos = 1e9 / targetOpsPerSecond;
+        long start = System.nanoTime();
+        for (int i = 0; i < ops.size(); i++) {
+            long scheduled = start + (long) (i * intervalNanos);
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                if (wait > 200_000) {
+                    LockSupport.parkNanos(wait - 100_000); // Sleep most of the gap, then spin the last bit for accuracy.
+                }
+            }
+            WorkloadOp op = ops.get(i);
+            outcome = outcome * 31 + op.applyTo(service, user);
+            long latency = System.nanoTime() - scheduled;
+            all[i] = latency;
+            int n = counts.get(op.getType());
+            latencies.get(op.getType())[n] = latency;
+            counts.put(op.getType(), n + 1);
+        }
+        long elapsed = System.nanoTime() - start;
+        Map<WorkloadOp.Type, long[]> byType = new EnumMap<>(WorkloadOp.Type.class);
+        for (WorkloadOp.Type type : WorkloadOp.Type.values()) {
+            byType.put(type, Arrays.copyOf(latencies.get(type), counts.get(type)));
+        }
+        return new LoadReport(ops.size(), elapsed, all, byType, outcome);
+    }
+}
+
+/**
+ * The result of a replay: throughput, latency percentiles overall and per operation type, and a checksum
+ * of what every operation returned (equal checksums mean two replays behaved identically).
+ */
+class LoadReport {
+    private final int operations;
+    private final long elapsedNanos;
+    private final long[] sortedLatencies;
+    private final Map<WorkloadOp.Type, long[]> sortedByType;
+    private final long outcomeChecksum;
+
+    public LoadReport(int operations, long elapsedNanos, long[] latencies, Map<WorkloadOp.Type, long[]> byType, long outcomeChecksum) {
+        this.operations = operations;
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencies = latencies.clone();
+        Arrays.sort(sortedLatencies);
+        this.sortedByType = new EnumMap<>(WorkloadOp.Type.class);
+        for (Map.Entry<WorkloadOp.Type, long[]> e : byType.entrySet()) {
+            long[] sorted = e.getValue().clone();
+            Arrays.sort(sorted);
+            sortedByType.put(e.getKey(), sorted);
+        }
+        this.outcomeChecksum = outcomeChecksum;
+    }
+
+    public double getThroughput() { return operations / (elapsedNanos / 1e9); }
+    public long getOutcomeChecksum() { return outcomeChecksum; }
+
+    /**
+     * The latency below which the given fraction of operations finished, e.g. 0.99 for p99.
+     */
+    public static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%,d operations in %.2f s = %,.0f ops/s%n", operations, elapsedNanos / 1e9, getThroughput()));
+        out.append(line("all", sortedLatencies));
+        for (Map.Entry<WorkloadOp.Type, long[]> e : sortedByType.entrySet()) {
+            out.append(line(e.getKey().name().toLowerCase(), e.getValue()));
+        }
+        return out.toString();
+    }
+
+    private static String line(String label, long[] sorted) {
+        return String.format("  %-7s %,9d ops  p50 %8.3f ms  p99 %8.3f ms  p999 %8.3f ms%n", label, sorted.length,
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6);
+    }
+}
+
+/**
+ * This class saves and loads the whole catalog as a single compact binary file, so a cold start
+ * doesn't have to rebuild every object graph from scratch.
+ * Layout: a fixed header (magic, version, payload length, CRC32 of the payload), then a string table,
+ * then fixed-width pharmacy records, fixed-width medicine records grouped by pharmacy, and fixed-width
+ * stock lot records grouped by medicine (in dispensing order).
+ * Repeated strings like "Beximco" are stored once and shared by every medicine that refers to them.
+ */
+class CatalogSnapshot {
+    static final int MAGIC = 0x454D5353; // "EMSS"
+    static final int VERSION = 3;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+    private static final int PHARMACY_RECORD_BYTES = 4 + 4 + 8 + 8 + 4;
+    private static final int MEDICINE_RECORD_BYTES = 4 + 4 + 4 + 8 + 4;
+    private static final int LOT_RECORD_BYTES = 4 + 8;
+    private static final long NO_EXPIRY = Long.MIN_VALUE;
+
+    public static void write(List<Pharmacy> pharmacies, Path file) throws IOException {
+        // I build the string table first so that every record can refer to a string by its index.
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        int medicineCount = 0;
+        int lotCount = 0;
+        for (Pharmacy p : pharmacies) {
+            intern(p.getId(), stringIds, strings);
+            intern(p.getName(), stringIds, strings);
+            for (Medicine m : p.getInventory()) {
+                intern(m.getName(), stringIds, strings);
+                intern(m.getCategory(), stringIds, strings);
+                intern(m.getSupplier(), stringIds, strings);
+                medicineCount++;
+                lotCount += m.getLots().size();
+            }
+        }
+        byte[][] encodedStrings = new byte[strings.size()][];
+        int stringBytes = 0;
+        for (int i = 0; i < encodedStrings.length; i++) {
+            encodedStrings[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            stringBytes += 4 + encodedStrings[i].length;
+        }
+
+        int payloadLength = 4 + stringBytes + 4 + 4
+                + pharmacies.size() * PHARMACY_RECORD_BYTES + medicineCount * MEDICINE_RECORD_BYTES + lotCount * LOT_RECORD_BYTES;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(payloadLength).putLong(0L); // The CRC is patched in at the end.
+        buf.putInt(encodedStrings.length);
+        for (byte[] bytes : encodedStrings) {
+            buf.putInt(bytes.length).put(bytes);
+        }
+        buf.putInt(pharmacies.size()).putInt(medicineCount);
+        for (Pharmacy p : pharmacies) {
+            buf.putInt(stringIds.get(p.getId())).putInt(stringIds.get(p.getName()))
+               .putDouble(p.getLocation().getLatitude()).putDouble(p.getLocation().getLongitude())
+               .putInt(p.getInventory().size());
+        }
+        for (Pharmacy p : pharmacies) {
+            for (Medicine m : p.getInventory()) {
+                buf.putInt(idOf(m.getName(), stringIds)).putInt(idOf(m.getCategory(), stringIds))
+                   .putInt(idOf(m.getSupplier(), stringIds)).putLong(m.getPricePaisa()).putInt(m.getLots().size());
+            }
+        }
+        for (Pharmacy p : pharmacies) {
+            for (Medicine m : p.getInventory()) {
+                for (StockLot lot : m.getLots()) {
+                    buf.putInt(lot.getQuantity())
+                       .putLong(lot.getExpiryDate() == null ? NO_EXPIRY : lot.getExpiryDate().toEpochDay());
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_BYTES, payloadLength);
+        buf.putLong(12, crc.getValue());
+
+        // I write to a temp file and then rename it, so a crash mid-write never leaves a half-written snapshot.
+        Path tmp = file.toAbsolutePath().resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, buf.array());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static List<Pharmacy> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Snapshot is too small: " + file);
+            }
+            // I map the file instead of reading it through a stream, so the OS hands us the bytes in one go.
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt() != MAGIC) {
+                throw new IOException("Not a catalog snapshot: " + file);
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            int payloadLength = buf.getInt();
+            long expectedCrc = buf.getLong();
+            if (payloadLength != size - HEADER_BYTES) {
+                throw new IOException("Snapshot is truncated: " + file);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if (crc.getValue() != expectedCrc) {
+                throw new IOException("Snapshot checksum mismatch: " + file);
+            }
+
+            String[] strings = new String[buf.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            int pharmacyCount = buf.getInt();
+            buf.getInt(); // The medicine count is implied by the per-pharmacy counts below.
+
+            List<Pharmacy> pharmacies = new ArrayList<>(pharmacyCount);
+            int[] inventorySizes = new int[pharmacyCount];
+            for (int i = 0; i < pharmacyCount; i++) {
+                String id = strings[buf.getInt()];
+                String name = strings[buf.getInt()];
+                Location location = new Location(buf.getDouble(), buf.getDouble());
+                inventorySizes[i] = buf.getInt();
+                pharmacies.add(new Pharmacy(id, name, location));
+            }
+            List<Medicine> medicines = new ArrayList<>();
+            List<Integer> lotCounts = new ArrayList<>();
+            for (int i = 0; i < pharmacyCount; i++) {
+                Pharmacy p = pharmacies.get(i);
+                for (int j = 0; j < inventorySizes[i]; j++) {
+                    String name = stringAt(strings, buf.getInt());
+                    String category = stringAt(strings, buf.getInt());
+                    String supplier = stringAt(strings, buf.getInt());
+                    Medicine m = new Medicine(name, category, supplier, buf.getLong(), 0, p.getName());
+                    lotCounts.add(buf.getInt());
+                    medicines.add(m);
+                    p.addMedicine(m);
+                }
+            }
+            // The lots follow in the same medicine order, already sorted for dispensing.
+            for (int i = 0; i < medicines.size(); i++) {
+                for (int j = lotCounts.get(i); j > 0; j--) {
+                    int quantity = buf.getInt();
+                    long expiryDay = buf.getLong();
+                    medicines.get(i).receiveLot(quantity, expiryDay == NO_EXPIRY ? null : LocalDate.ofEpochDay(expiryDay));
+                }
+            }
+            return pharmacies;
+        }
+    }
+
+    private static void intern(String value, Map<String, Integer> stringIds, List<String> strings) {
+        if (value != null && !stringIds.containsKey(value)) {
+            stringIds.put(value, strings.size());
+            strings.add(value);
+        }
+    }
+
+    // A null string (e.g. an empty optional field) is stored as -1.
+    private static int idOf(String value, Map<String, Integer> stringIds) {
+        return value == null ? -1 : stringIds.get(value);
+    }
+
+    private static String stringAt(String[] strings, int id) {
+        return id < 0 ? null : strings[id];
+    }
+}
+
+// ======================================================================
+// Model and Helper Classes (The Blueprints for our Data)
+// ======================================================================
+class DistanceCalculator {
+    public static double calculate(double lat1, double lon1, double lat2, double lon2) {
+        final int R = 6371; // Earth's radius in km
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return R * c;
+    }
+}
+/**
+ * Prices and totals are kept as a whole number of paisa (1 BDT = 100 paisa) in a plain long.
+ * This gives exact sums with no allocation, unlike double (which drifts) or BigDecimal (which creates garbage on every step).
+ * This class only holds the helpers for converting, multiplying and formatting those longs.
+ */
+final class Money {
+    static final long PAISA_PER_TAKA = 100;
+
+    private Money() {}
+
+    /**
+     * Converts a taka amount written as a literal (like 12.50) to paisa, rounding to the nearest paisa.
+     */
+    static long ofTaka(double taka) {
+        return Math.round(taka * PAISA_PER_TAKA);
+    }
+
+    /**
+     * Parses user input such as "12", "12.5" or "12.50" exactly, without going through double.
+     * @throws NumberFormatException if the text is not a non-negative amount with at most two decimals.
+     */
+    static long parse(String text) {
+        String s = text.trim();
+        long taka = 0;
+        long fraction = 0;
+        int fractionDigits = -1; // -1 means we haven't seen the decimal point yet.
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (ch >= '0' && ch <= '9' && fractionDigits < 0) {
+                try {
+                    taka = Math.addExact(Math.multiplyExact(taka, 10), ch - '0');
+                } catch (ArithmeticException e) {
+                    throw new NumberFormatException("Amount is too large: " + text);
+                }
+            } else if (ch >= '0' && ch <= '9' && fractionDigits < 2) {
+                fraction = fraction * 10 + (ch - '0');
+                fractionDigits++;
+            } else {
+                throw new NumberFormatException("Not a valid amount: " + text);
+            }
+        }
+        if (s.isEmpty() || s.equals(".")) {
+            throw new NumberFormatException("Not a valid amount: " + text);
+        }
+        if (fractionDigits == 1) {
+            fraction *= 10; // "12.5" means 12 taka 50 paisa.
+        }
+        try {
+            return Math.addExact(Math.multiplyExact(taka, PAISA_PER_TAKA), fraction);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount is too large: " + text);
+        }
+    }
+
+    /**
+     * Multiplies a unit price by a quantity. I use multiplyExact so an overflow fails loudly instead of wrapping around.
+     */
+    static long times(long pricePaisa, int quantity) {
+        return Math.multiplyExact(pricePaisa, quantity);
+    }
+
+    static double toTaka(long paisa) {
+        return paisa / (double) PAISA_PER_TAKA;
+    }
+
+    /**
+     * Formats an amount for receipts and reports, e.g. 123456 becomes "1,234.56".
+     */
+    static String format(long paisa) {
+        return appendTo(new StringBuilder(24), paisa, true).toString();
+    }
+
+    /**
+     * Formats an amount for tables and form fields, e.g. 123456 becomes "1234.56".
+     */
+    static String toPlainString(long paisa) {
+        return appendTo(new StringBuilder(24), paisa, false).toString();
+    }
+
+    /**
+     * Appends an amount to an existing builder, so callers that format many values can reuse one buffer.
+     */
+    static StringBuilder appendTo(StringBuilder sb, long paisa, boolean grouping) {
+        // I split before taking the absolute value, so even Long.MIN_VALUE formats without overflowing.
+        long taka = Math.abs(paisa / PAISA_PER_TAKA);
+        int fraction = (int) Math.abs(paisa % PAISA_PER_TAKA);
+        if (paisa < 0) {
+            sb.append('-');
+        }
+        int start = sb.length();
+        sb.append(taka);
+        if (grouping) {
+            for (int i = sb.length() - 3; i > start; i -= 3) {
+                sb.insert(i, ',');
+            }
+        }
+        return sb.append('.').append((char) ('0' + fraction / 10)).append((char) ('0' + fraction % 10));
+    }
+}
+class PurchaseRecord {
+    private final String customerName, medicineName, pharmacyName;
+    private final int quantity;
+    private final long totalPaisa;
+    private final long timestampMillis;
+    public PurchaseRecord(String cName, String mName, int qty, long totalPaisa, String pName) {
+        this(cName, mName, qty, totalPaisa, pName, System.currentTimeMillis());
+    }
+    public PurchaseRecord(String cName, String mName, int qty, long totalPaisa, String pName, long timestampMillis) {
+        this.customerName = cName; this.medicineName = mName; this.quantity = qty;
+        this.totalPaisa = totalPaisa; this.pharmacyName = pName; this.timestampMillis = timestampMillis;
+    }
+    public String getCustomerName() { return customerName; }
+    public String getMedicineName() { return medicineName; }
+    public String getPharmacyName() { return pharmacyName; }
+    public int getQuantity() { return quantity; }
+    public long getTotalPaisa() { return totalPaisa; }
+    public Date getTimestamp() { return new Date(timestampMillis); }
+    public long getTimestampMillis() { return timestampMillis; }
+}
+class Medicine {
+    private String name, category, supplier, pharmacyName;
+    private long pricePaisa; // The unit price in paisa (see Money).
+    private int stock; // Always the total of the lots below.
+    // Stock arrives in lots with expiry dates. The queue keeps the first-expiring lot at the head (undated lots last),
+    // so dispensing first-expiry-first-out only ever touches the head: O(log lots) per lot used up.
+    private final PriorityQueue<StockLot> lots = new PriorityQueue<>(StockLot.FEFO_ORDER);
+    private long nextLotSequence = 0;
+    public Medicine(String name, String cat, String sup, long pricePaisa, int stock, String pName) {
+        this(name, cat, sup, pricePaisa, stock, pName, null);
+    }
+    public Medicine(String name, String cat, String sup, long pricePaisa, int stock, String pName, LocalDate expiryDate) {
+        if (stock < 0) {
+            throw new IllegalArgumentException("Stock of " + name + " cannot be negative");
+        }
+        this.name = name; this.category = cat; this.supplier = sup; this.pricePaisa = pricePaisa; this.pharmacyName = pName;
+        if (stock > 0) {
+            receiveLot(stock, expiryDate);
+        }
+    }
+    public String getName() { return name; }
+    public String getCategory() { return category; }
+    public String getSupplier() { return supplier; }
+    public long getPricePaisa() { return pricePaisa; }
+    public int getStock() { return stock; }
+    public String getPharmacyName() { return pharmacyName; }
+    public void setPricePaisa(long pricePaisa) { this.pricePaisa = pricePaisa; }
+    public void setCategory(String category) { this.category = category; }
+    public void setSupplier(String supplier) { this.supplier = supplier; }
+
+    /**
+     * Adds a new lot of stock. A null expiry date means the lot never expires.
+     */
+    public StockLot receiveLot(int quantity, LocalDate expiryDate) {
+        StockLot lot = new StockLot(this, quantity, expiryDate, nextLotSequence++);
+        lots.add(lot);
+        stock += quantity;
+        return lot;
+    }
+
+    /**
+     * Takes stock out first-expiry-first-out. The caller must check getStock() first.
+     */
+    public void dispense(int quantity) {
+        if (quantity > stock) {
+            throw new IllegalArgumentException("Only " + stock + " units of " + name + " in stock");
+        }
+        int remaining = quantity;
+        while (remaining > 0) {
+            StockLot lot = lots.peek();
+            int take = Math.min(remaining, lot.getQuantity());
+            lot.take(take);
+            if (lot.getQuantity() == 0) {
+                lots.poll();
+            }
+            remaining -= take;
+        }
+        stock -= quantity;
+    }
+
+    /**
+     * Removes every lot that expired before 'today'. Expired lots sort first, so this only looks at the head.
+     * @return the number of units removed.
+     */
+    public int retireExpired(LocalDate today) {
+        int retired = 0;
+        while (!lots.isEmpty() && lots.peek().isExpired(today)) {
+            retired += retireLot(lots.peek());
+        }
+        return retired;
+    }
+
+    /**
+     * Removes one specific lot, e.g. when the expiry sweep finds it. Returns the number of units removed.
+     */
+    public int retireLot(StockLot lot) {
+        // The lot being retired is almost always the head, which makes this a cheap poll() instead of a linear remove().
+        boolean removed = (lots.peek() == lot) ? lots.poll() != null : lots.remove(lot);
+        if (!removed) {
+            return 0;
+        }
+        int quantity = lot.getQuantity();
+        lot.take(quantity);
+        stock -= quantity;
+        return quantity;
+    }
+
+    /**
+     * The lots in the order they will be dispensed.
+     */
+    public List<StockLot> getLots() {
+        List<StockLot> ordered = new ArrayList<>(lots);
+        ordered.sort(StockLot.FEFO_ORDER);
+        return ordered;
+    }
 
-// ======================================================================
-// Model and Helper Classes (The Blueprints for our Data)
-// ======================================================================
-class DistanceCalculator {
-    public static double calculate(double lat1, double lon1, double lat2, double lon2) {
-        final int R = 6371; // Earth's radius in km
-        double latDistance = Math.toRadians(lat2 - lat1);
-        double lonDistance = Math.toRadians(lon2 - lon1);
-        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        return R * c;
+    public LocalDate getEarliestExpiry() {
+        return lots.isEmpty() ? null : lots.peek().getExpiryDate();
+    }
+
+    /**
+     * Replaces every lot with copies of the given ones, e.g. from a copy of this medicine replicated from another node.
+     * The old lots are emptied, so anything still holding on to them (like ExpiryTracker) sees nothing left in them.
+     */
+    public void replaceLots(List<StockLot> newLots) {
+        for (StockLot lot : lots) {
+            lot.take(lot.getQuantity());
+        }
+        lots.clear();
+        stock = 0;
+        for (StockLot lot : newLots) {
+            if (lot.getQuantity() > 0) {
+                receiveLot(lot.getQuantity(), lot.getExpiryDate());
+            }
+        }
     }
 }
-class PurchaseRecord {
-    private final String customerName, medicineName, pharmacyName;
-    private final int quantity;
-    private final double totalPrice;
-    private final Date timestamp;
-    public PurchaseRecord(String cName, String mName, int qty, double total, String pName) {
-        this.customerName = cName; this.medicineName = mName; this.quantity = qty;
-        this.totalPrice = total; this.pharmacyName = pName; this.timestamp = new Date();
+/**
+ * One delivery of a medicine with a single expiry date. The quantity goes down as units are dispensed.
+ */
+class StockLot {
+    // Earliest expiry first, lots with no expiry date last, and the older delivery first when the dates match.
+    static final Comparator<StockLot> FEFO_ORDER = Comparator
+            .comparing(StockLot::getExpiryDate, Comparator.nullsLast(Comparator.<LocalDate>naturalOrder()))
+            .thenComparingLong(StockLot::getSequence);
+    private final Medicine medicine;
+    private final LocalDate expiryDate;
+    private final long sequence;
+    private int quantity;
+    public StockLot(Medicine medicine, int quantity, LocalDate expiryDate, long sequence) {
+        this.medicine = medicine; this.quantity = quantity; this.expiryDate = expiryDate; this.sequence = sequence;
     }
-    public String getCustomerName() { return customerName; }
-    public String getMedicineName() { return medicineName; }
-    public String getPharmacyName() { return pharmacyName; }
+    public Medicine getMedicine() { return medicine; }
+    public LocalDate getExpiryDate() { return expiryDate; }
+    public long getSequence() { return sequence; }
     public int getQuantity() { return quantity; }
-    public double getTotalPrice() { return totalPrice; }
-    public Date getTimestamp() { return timestamp; }
+    public boolean isExpired(LocalDate today) { return expiryDate != null && expiryDate.isBefore(today); }
+    void take(int units) { this.quantity -= units; }
 }
-class Medicine {
-    private String name, category, supplier, pharmacyName;
-    private double price;
-    private int stock;
-    public Medicine(String name, String cat, String sup, double price, int stock, String pName) {
-        this.name = name; this.category = cat; this.supplier = sup; this.price = price; this.stock = stock; this.pharmacyName = pName;
+class ReorderSuggestion {
+    private final String pharmacyName, medicineName;
+    private final int stock, suggestedOrder;
+    private final double unitsPerDay, daysLeft;
+    public ReorderSuggestion(String pName, String mName, int stock, double unitsPerDay, double daysLeft, int suggestedOrder) {
+        this.pharmacyName = pName; this.medicineName = mName; this.stock = stock;
+        this.unitsPerDay = unitsPerDay; this.daysLeft = daysLeft; this.suggestedOrder = suggestedOrder;
+    }
+    public String getPharmacyName() { return pharmacyName; }
+    public String getMedicineName() { return medicineName; }
+    public int getStock() { return stock; }
+    public double getUnitsPerDay() { return unitsPerDay; }
+    public double getDaysLeft() { return daysLeft; }
+    public int getSuggestedOrder() { return suggestedOrder; }
+}
+/**
+ * The result of FulfilmentPlanner: how many units to take from each pharmacy.
+ * The plan is only a proposal until PharmacyService.commitPlan() applies it in one step.
+ */
+class FulfilmentPlan {
+    private final String medicineName;
+    private final int requestedQuantity, plannedQuantity;
+    private final List<Allocation> allocations;
+    private final long totalPaisa;
+    public FulfilmentPlan(String medicineName, int requestedQuantity, List<Allocation> allocations) {
+        this.medicineName = medicineName; this.requestedQuantity = requestedQuantity; this.allocations = allocations;
+        int planned = 0;
+        long total = 0;
+        for (Allocation a : allocations) {
+            planned += a.getQuantity();
+            total += Money.times(a.getUnitPricePaisa(), a.getQuantity());
+        }
+        this.plannedQuantity = planned; this.totalPaisa = total;
+    }
+    public String getMedicineName() { return medicineName; }
+    public int getRequestedQuantity() { return requestedQuantity; }
+    public int getPlannedQuantity() { return plannedQuantity; }
+    public List<Allocation> getAllocations() { return allocations; }
+    public long getTotalPaisa() { return totalPaisa; }
+    public boolean isComplete() { return plannedQuantity == requestedQuantity; }
+
+    static class Allocation {
+        private final String pharmacyName;
+        private final int quantity;
+        private final long unitPricePaisa;
+        private final double distance;
+        public Allocation(String pName, int qty, long unitPricePaisa, double dist) {
+            this.pharmacyName = pName; this.quantity = qty; this.unitPricePaisa = unitPricePaisa; this.distance = dist;
+        }
+        public String getPharmacyName() { return pharmacyName; }
+        public int getQuantity() { return quantity; }
+        public long getUnitPricePaisa() { return unitPricePaisa; }
+        public double getDistance() { return distance; }
+    }
+}
+class SearchCacheStats {
+    private final long hits, misses, staleEvictions;
+    private final int size;
+    public SearchCacheStats(long hits, long misses, long staleEvictions, int size) {
+        this.hits = hits; this.misses = misses; this.staleEvictions = staleEvictions; this.size = size;
+    }
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getStaleEvictions() { return staleEvictions; }
+    public int getSize() { return size; }
+    public double getHitRate() { return (hits + misses) == 0 ? 0.0 : hits / (double) (hits + misses); }
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d stale, %d cached", hits, misses, getHitRate() * 100, staleEvictions, size);
+    }
+}
+/**
+ * The buyer's facet selections. A null category or supplier means "any", and a distance of 0 means "any distance".
+ */
+class FacetFilter {
+    private final String category, supplier;
+    private final double maxDistanceKm;
+    public FacetFilter(String category, String supplier, double maxDistanceKm) {
+        this.category = category; this.supplier = supplier; this.maxDistanceKm = maxDistanceKm;
     }
-    public String getName() { return name; }
     public String getCategory() { return category; }
     public String getSupplier() { return supplier; }
-    public double getPrice() { return price; }
-    public int getStock() { return stock; }
-    public String getPharmacyName() { return pharmacyName; }
-    public void setStock(int stock) { this.stock = stock; }
-    public void setPrice(double price) { this.price = price; }
-    public void setCategory(String category) { this.category = category; }
-    public void setSupplier(String supplier) { this.supplier = supplier; }
+    public double getMaxDistanceKm() { return maxDistanceKm; }
+    public boolean isEmpty() { return category == null && supplier == null && maxDistanceKm <= 0; }
+}
+class FacetCounts {
+    private final Map<String, Integer> categories, suppliers;
+    public FacetCounts(Map<String, Integer> categories, Map<String, Integer> suppliers) {
+        this.categories = categories; this.suppliers = suppliers;
+    }
+    public Map<String, Integer> getCategories() { return categories; }
+    public Map<String, Integer> getSuppliers() { return suppliers; }
+}
+/**
+ * One entry in a facet dropdown, e.g. "Antibiotic (3)". A null value is the "All" entry.
+ * Two options are equal when their values are, so a selection survives the counts being refreshed.
+ */
+class FacetOption {
+    private final String value;
+    private final int count;
+    public FacetOption(String value, int count) { this.value = value; this.count = count; }
+    public String getValue() { return value; }
+    @Override
+    public String toString() { return value == null ? "All" : value + " (" + count + ")"; }
+    @Override
+    public boolean equals(Object o) { return o instanceof FacetOption && Objects.equals(value, ((FacetOption) o).value); }
+    @Override
+    public int hashCode() { return Objects.hashCode(value); }
 }
 class Pharmacy {
     private final String id, name;
@@ -1004,11 +5227,800 @@ class SearchResult {
     private final String pharmacyId, pharmacyName;
     private final Medicine medicine;
     private final double distance;
+    private final int matchScore; // How closely the name matched the search, 0 is best (see FuzzyMedicineIndex).
     public SearchResult(String pId, String pName, Medicine med, double dist) {
-        this.pharmacyId = pId; this.pharmacyName = pName; this.medicine = med; this.distance = dist;
+        this(pId, pName, med, dist, 0);
+    }
+    public SearchResult(String pId, String pName, Medicine med, double dist, int matchScore) {
+        this.pharmacyId = pId; this.pharmacyName = pName; this.medicine = med; this.distance = dist; this.matchScore = matchScore;
     }
     public String getPharmacyId() { return pharmacyId; }
     public String getPharmacyName() { return pharmacyName; }
     public Medicine getMedicine() { return medicine; }
     public double getDistance() { return distance; }
+    public int getMatchScore() { return matchScore; }
+}
+
+// ======================================================================
+// Benchmarks (compile the file with javac, then run e.g. "java -cp <out> SnapshotBenchmark")
+// ======================================================================
+
+/**
+ * Compares cold-start catalog loading: rebuilding the catalog from a CSV export (what a real catalog
+ * would need today) against loading the same catalog from a binary CatalogSnapshot.
+ * Usage: SnapshotBenchmark [pharmacies] [medicinesPerPharmacy]
+ */
+class SnapshotBenchmark {
+    public static void main(String[] args) throws IOException {
+        int pharmacyCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int medicinesPerPharmacy = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        List<Pharmacy> catalog = syntheticCatalog(pharmacyCount, medicinesPerPharmacy);
+
+        Path dir = Files.createTempDirectory("ems-bench");
+        Path csv = dir.resolve("catalog.csv");
+        Path snapshot = dir.resolve("catalog.snap");
+        writeCsv(catalog, csv);
+        CatalogSnapshot.write(catalog, snapshot);
+        System.out.printf("Catalog: %d pharmacies, %d medicines. CSV %,d bytes, snapshot %,d bytes%n",
+                pharmacyCount, pharmacyCount * medicinesPerPharmacy, Files.size(csv), Files.size(snapshot));
+
+        long[] csvTimes = new long[10];
+        long[] snapshotTimes = new long[10];
+        for (int run = 0; run < csvTimes.length; run++) {
+            long start = System.nanoTime();
+            readCsv(csv);
+            csvTimes[run] = System.nanoTime() - start;
+            start = System.nanoTime();
+            CatalogSnapshot.read(snapshot);
+            snapshotTimes[run] = System.nanoTime() - start;
+        }
+        report("CSV rebuild", csvTimes);
+        report("Snapshot load", snapshotTimes);
+
+        Files.delete(csv);
+        Files.delete(snapshot);
+        Files.delete(dir);
+    }
+
+    static List<Pharmacy> syntheticCatalog(int pharmacyCount, int medicinesPerPharmacy) {
+        String[] categories = {"Painkiller", "Antibiotic", "Antacid", "Antihistamine", "Vitamin", "Asthma"};
+        String[] suppliers = {"Beximco", "Square", "Acme", "Opsonin", "GSK", "Incepta"};
+        Random random = new Random(42);
+        List<Pharmacy> catalog = new ArrayList<>(pharmacyCount);
+        for (int i = 0; i < pharmacyCount; i++) {
+            Pharmacy p = new Pharmacy("p" + i, "Pharmacy " + i,
+                    new Location(23.70 + random.nextDouble() * 0.2, 90.33 + random.nextDouble() * 0.1));
+            Set<Integer> stocked = new HashSet<>();
+            for (int j = 0; j < medicinesPerPharmacy; j++) {
+                int sku = random.nextInt(medicinesPerPharmacy * 4);
+                if (!stocked.add(sku)) {
+                    j--; // A pharmacy lists each medicine once, as in the real catalog.
+                    continue;
+                }
+                p.addMedicine(new Medicine("Medicine " + sku, categories[sku % categories.length],
+                        suppliers[sku % suppliers.length], 100 + random.nextInt(5000), random.nextInt(500), p.getName()));
+            }
+            catalog.add(p);
+        }
+        return catalog;
+    }
+
+    private static void writeCsv(List<Pharmacy> catalog, Path csv) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(csv)) {
+            for (Pharmacy p : catalog) {
+                out.write("P," + p.getId() + "," + p.getName() + "," + p.getLocation().getLatitude() + "," + p.getLocation().getLongitude());
+                out.newLine();
+                for (Medicine m : p.getInventory()) {
+                    out.write("M," + m.getName() + "," + m.getCategory() + "," + m.getSupplier() + "," + Money.toPlainString(m.getPricePaisa()) + "," + m.getStock());
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    private static List<Pharmacy> readCsv(Path csv) throws IOException {
+        List<Pharmacy> catalog = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(csv)) {
+            Pharmacy current = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split(",");
+                if (f[0].equals("P")) {
+                    current = new Pharmacy(f[1], f[2], new Location(Double.parseDouble(f[3]), Double.parseDouble(f[4])));
+                    catalog.add(current);
+                } else {
+                    current.addMedicine(new Medicine(f[1], f[2], f[3], Money.parse(f[4]), Integer.parseInt(f[5]), current.getName()));
+                }
+            }
+        }
+        return catalog;
+    }
+
+    static void report(String label, long[] nanos) {
+        long first = nanos[0];
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-16s first run %8.2f ms, median %8.2f ms%n", label, first / 1e6, sorted[sorted.length / 2] / 1e6);
+    }
+}
+
+/**
+ * Compares summing purchase totals with double (the old way), a straightforward BigDecimal version,
+ * and Money's long paisa. It reports time, bytes allocated and how far each total drifts from the exact answer.
+ * Usage: MoneyBenchmark [purchases]
+ */
+class MoneyBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Random random = new Random(7);
+        long[] pricesPaisa = new long[count];
+        int[] quantities = new int[count];
+        for (int i = 0; i < count; i++) {
+            pricesPaisa[i] = 100 + random.nextInt(5000);
+            quantities[i] = 1 + random.nextInt(10);
+        }
+        double[] pricesTaka = new double[count];
+        java.math.BigDecimal[] pricesDecimal = new java.math.BigDecimal[count];
+        for (int i = 0; i < count; i++) {
+            pricesTaka[i] = Money.toTaka(pricesPaisa[i]);
+            pricesDecimal[i] = java.math.BigDecimal.valueOf(pricesPaisa[i], 2);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            boolean last = round == 2; // The first rounds only warm up the JIT.
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            double doubleTotal = 0;
+            for (int i = 0; i < count; i++) {
+                doubleTotal += quantities[i] * pricesTaka[i];
+            }
+            long doubleNanos = System.nanoTime() - start;
+            long doubleBytes = allocatedBytes() - allocated;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            java.math.BigDecimal decimalTotal = java.math.BigDecimal.ZERO;
+            for (int i = 0; i < count; i++) {
+                decimalTotal = decimalTotal.add(pricesDecimal[i].multiply(java.math.BigDecimal.valueOf(quantities[i])));
+            }
+            long decimalNanos = System.nanoTime() - start;
+            long decimalBytes = allocatedBytes() - allocated;
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            long paisaTotal = 0;
+            for (int i = 0; i < count; i++) {
+                paisaTotal += Money.times(pricesPaisa[i], quantities[i]);
+            }
+            long paisaNanos = System.nanoTime() - start;
+            long paisaBytes = allocatedBytes() - allocated;
+
+            if (last) {
+                System.out.printf("%,d purchases%n", count);
+                // I print the raw double so the accumulated rounding error is visible before any display rounding hides it.
+                java.math.BigDecimal doubleError = new java.math.BigDecimal(doubleTotal).subtract(java.math.BigDecimal.valueOf(paisaTotal, 2));
+                System.out.printf("double      %7.2f ms %,14d bytes  total %s (error %s)%n", doubleNanos / 1e6, doubleBytes,
+                        new java.math.BigDecimal(doubleTotal).toPlainString(), doubleError.toPlainString());
+                System.out.printf("BigDecimal  %7.2f ms %,14d bytes  total %s%n", decimalNanos / 1e6, decimalBytes, decimalTotal.toPlainString());
+                System.out.printf("long paisa  %7.2f ms %,14d bytes  total %s%n", paisaNanos / 1e6, paisaBytes, Money.toPlainString(paisaTotal));
+            }
+        }
+    }
+
+    // HotSpot can count the bytes each thread allocates, which is more precise than watching heap usage.
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
+
+/**
+ * Measures FuzzyMedicineIndex on a large synthetic list of names: build time and per-query latency
+ * for exact, typo and half-typed queries.
+ * Usage: FuzzySearchBenchmark [names]
+ */
+class FuzzySearchBenchmark {
+    public static void main(String[] args) {
+        int nameCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        String[] syllables = {"na", "pa", "fe", "xo", "mo", "sec", "lo", "cee", "vit", "tuf", "nil", "fi", "nix", "zi",
+                              "thro", "my", "cin", "lo", "sec", "max", "pro", "ra", "bi", "tor", "zen", "ca", "dol", "ri"};
+        String[] forms = {"extend", "rapid", "plus", "forte", "syrup", "drops", "tablet", "capsule"};
+        Random random = new Random(11);
+        FuzzyMedicineIndex index = new FuzzyMedicineIndex();
+        String[] sampleNames = {"Napa Extend", "Azithromycin 500", "Fexo 120", "Monas 10", "Seclo 20"};
+        for (String name : sampleNames) {
+            index.addName(name);
+        }
+        long start = System.nanoTime();
+        for (int i = sampleNames.length; i < nameCount; i++) {
+            // Made-up but word-like brand names, so the word dictionary is about as varied as a real catalog's.
+            StringBuilder brand = new StringBuilder();
+            for (int syllable = 2 + random.nextInt(3); syllable > 0; syllable--) {
+                brand.append(syllables[random.nextInt(syllables.length)]);
+            }
+            index.addName(brand + " " + forms[random.nextInt(forms.length)] + " " + (10 * (1 + random.nextInt(50))));
+        }
+        System.out.printf("Indexed %,d names in %.0f ms%n", nameCount, (System.nanoTime() - start) / 1e6);
+
+        String[] queries = {"napa extnd", "azithromicin", "fexo 120", "monss", "paracetmol", "sec"};
+        for (String query : queries) {
+            int matches = 0;
+            for (int i = 0; i < 200; i++) {
+                matches = index.match(query).size(); // Warm-up.
+            }
+            int runs = 2000;
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                index.match(query);
+            }
+            System.out.printf("%-16s %6d matches  %8.1f us/query%n", "\"" + query + "\"", matches, (System.nanoTime() - start) / 1e3 / runs);
+        }
+    }
+}
+
+/**
+ * Measures the buyer results table while scrolling: bytes allocated and time per painted frame with the old
+ * per-cell renderer (new Color and deriveFont for every cell, price and distance formatted as Strings) against
+ * the current ClosestPharmacyRenderer with NumericCells. It paints into an off-screen image, so it runs headless.
+ * Usage: java -Djava.awt.headless=true RenderBenchmark [rows]
+ */
+class RenderBenchmark {
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        List<SearchResult> results = new ArrayList<>(rows);
+        for (Pharmacy p : SnapshotBenchmark.syntheticCatalog(rows / 50 + 1, 50)) {
+            for (Medicine m : p.getInventory()) {
+                results.add(new SearchResult(p.getId(), p.getName(), m, m.getStock() % 97 / 10.0));
+            }
+        }
+        results = results.subList(0, Math.min(rows, results.size()));
+        String closest = results.get(0).getPharmacyName();
+        String[] columns = {"Medicine Name", "Category", "Price (Tk)", "Stock", "Pharmacy", "Distance (km)"};
+
+        for (int round = 0; round < 3; round++) {
+            boolean last = round == 2; // The first rounds only warm up the JIT.
+            long allocated = MoneyBenchmark.allocatedBytes();
+            long start = System.nanoTime();
+            DefaultTableModel legacyModel = new DefaultTableModel(columns, 0);
+            for (SearchResult r : results) {
+                legacyModel.addRow(new Object[]{r.getMedicine().getName(), r.getMedicine().getCategory(),
+                        String.format("%.2f", Money.toTaka(r.getMedicine().getPricePaisa())), r.getMedicine().getStock(),
+                        r.getPharmacyName(), String.format("%.2f", r.getDistance())});
+            }
+            long legacyFillNanos = System.nanoTime() - start;
+            long legacyFillBytes = MoneyBenchmark.allocatedBytes() - allocated;
+
+            allocated = MoneyBenchmark.allocatedBytes();
+            start = System.nanoTime();
+            CellFormatter formatter = new CellFormatter();
+            DefaultTableModel model = new DefaultTableModel(columns, 0);
+            for (SearchResult r : results) {
+                model.addRow(new Object[]{r.getMedicine().getName(), r.getMedicine().getCategory(),
+                        formatter.money(r.getMedicine().getPricePaisa()), r.getMedicine().getStock(),
+                        r.getPharmacyName(), formatter.decimal(r.getDistance(), 2)});
+            }
+            long fillNanos = System.nanoTime() - start;
+            long fillBytes = MoneyBenchmark.allocatedBytes() - allocated;
+
+            long[] legacy = scroll(legacyModel, new LegacyRenderer(closest));
+            long[] current = scroll(model, new ClosestPharmacyRenderer(row -> closest.equals(model.getValueAt(row, 4))));
+            if (last) {
+                System.out.printf("%,d rows%n", results.size());
+                System.out.printf("Fill, String.format   %7.2f ms %,12d bytes%n", legacyFillNanos / 1e6, legacyFillBytes);
+                System.out.printf("Fill, CellFormatter   %7.2f ms %,12d bytes%n", fillNanos / 1e6, fillBytes);
+                System.out.printf("Scroll, old renderer  %7.3f ms %,12d bytes per frame%n", legacy[0] / 1e6, legacy[1]);
+                System.out.printf("Scroll, new renderer  %7.3f ms %,12d bytes per frame%n", current[0] / 1e6, current[1]);
+            }
+        }
+    }
+
+    // I paint a 30-row viewport into an image, stepping down the table one row per frame, and return the
+    // average nanoseconds and bytes allocated per frame.
+    private static long[] scroll(DefaultTableModel model, DefaultTableCellRenderer renderer) {
+        JTable table = new JTable(model);
+        table.setDefaultRenderer(Object.class, renderer);
+        table.setDefaultRenderer(Number.class, renderer);
+        table.setRowSorter(new TableRowSorter<>(model));
+        int width = 900;
+        int viewportHeight = 30 * table.getRowHeight();
+        table.setSize(width, model.getRowCount() * table.getRowHeight());
+        table.doLayout();
+        java.awt.image.BufferedImage image = new java.awt.image.BufferedImage(width, viewportHeight, java.awt.image.BufferedImage.TYPE_INT_RGB);
+        int frames = Math.min(2000, model.getRowCount() - 30);
+        long allocated = MoneyBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            Graphics2D g = image.createGraphics();
+            int top = frame * table.getRowHeight();
+            g.translate(0, -top);
+            g.setClip(0, top, width, viewportHeight);
+            table.paint(g);
+            g.dispose();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = MoneyBenchmark.allocatedBytes() - allocated;
+        return new long[]{nanos / frames, bytes / frames};
+    }
+
+    // The renderer as it was before it cached its color and fonts.
+    private static class LegacyRenderer extends DefaultTableCellRenderer {
+        private final String closestPharmacyName;
+        LegacyRenderer(String closestPharmacyName) { this.closestPharmacyName = closestPharmacyName; }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            Component c = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            String currentPharmacy = (String) table.getModel().getValueAt(table.convertRowIndexToModel(row), 4);
+            if (currentPharmacy != null && currentPharmacy.equals(closestPharmacyName)) {
+                c.setFont(c.getFont().deriveFont(Font.BOLD));
+                c.setForeground(new Color(0, 120, 0));
+            } else {
+                c.setForeground(table.getForeground());
+                c.setFont(c.getFont().deriveFont(Font.PLAIN));
+            }
+            return c;
+        }
+    }
+}
+
+/**
+ * Runs a primary and two read replicas over a SimulatedNetwork with latency and packet loss, sells stock on the primary
+ * as fast as it can (and keeps adding and deleting medicines), cuts one replica off for part of the run, and then checks
+ * that both replicas end up identical to it. Meanwhile another thread keeps searching the replicas, as buyers would,
+ * to check that a search never trips over a change being applied.
+ * Usage: ReplicationBenchmark [seconds] [pharmacies]
+ */
+class ReplicationBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int pharmacyCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        PharmacyService primary = new PharmacyService(SnapshotBenchmark.syntheticCatalog(pharmacyCount, 50));
+        SimulatedNetwork network = new SimulatedNetwork(1, 5, 40, 0.02);
+        ReplicationPublisher publisher = new ReplicationPublisher("primary", primary, network, 250);
+        ReadReplica nearby = new ReadReplica("replica-1", network);
+        ReadReplica faraway = new ReadReplica("replica-2", network);
+        publisher.addReplica("replica-1");
+        publisher.addReplica("replica-2");
+        publisher.start(20);
+
+        List<String[]> stocked = new ArrayList<>();
+        primary.forEachMedicine((p, m) -> stocked.add(new String[]{p.getName(), m.getName()}));
+        List<Pharmacy> pharmacies = new ArrayList<>();
+        primary.forEachPharmacy(pharmacies::add);
+
+        AtomicBoolean searching = new AtomicBoolean(true);
+        long[] searches = new long[2]; // Done, failed.
+        Thread searcher = new Thread(() -> {
+            Random r = new Random(4);
+            ReadReplica[] replicas = {nearby, faraway};
+            FacetFilter nearbyOnly = new FacetFilter(null, null, 3);
+            while (searching.get()) {
+                Location at = new Location(23.70 + r.nextDouble() * 0.2, 90.33 + r.nextDouble() * 0.1);
+                ReadReplica replica = replicas[r.nextInt(replicas.length)];
+                try {
+                    if (r.nextBoolean()) {
+                        replica.searchMedicine(r.nextBoolean() ? "" : "Medicine " + r.nextInt(200), at);
+                    } else {
+                        replica.searchMedicine("Churn", at, nearbyOnly);
+                    }
+                } catch (RuntimeException e) {
+                    if (searches[1]++ == 0) {
+                        e.printStackTrace();
+                    }
+                }
+                searches[0]++;
+                LockSupport.parkNanos(2_000_000); // Buyers pause between searches; a tight loop would just starve the apply thread.
+            }
+        }, "replica-searcher");
+        searcher.start();
+
+        User buyer = new User("Load Test");
+        Random random = new Random(3);
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        int sales = 0, steps = 0, churned = 0;
+        ArrayDeque<String[]> added = new ArrayDeque<>();
+        boolean partitioned = false, healed = false;
+        while (System.currentTimeMillis() < end) {
+            long elapsed = System.currentTimeMillis() - start;
+            // replica-2 is cut off for the middle third of the run.
+            if (!partitioned && elapsed > seconds * 1000L / 3) {
+                network.partition("primary", "replica-2");
+                partitioned = true;
+            } else if (!healed && elapsed > seconds * 2000L / 3) {
+                network.heal("primary", "replica-2");
+                healed = true;
+            }
+            String[] pick = stocked.get(random.nextInt(stocked.size()));
+            if (primary.buyMedicine(buyer, pick[0], pick[1], 1)) {
+                sales++;
+            }
+            // Every 20th step adds a medicine somewhere, and once 50 are around, deletes the oldest,
+            // so the replicas' inventory lists keep changing shape under the searcher.
+            if (++steps % 20 == 0) {
+                Pharmacy p = pharmacies.get(random.nextInt(pharmacies.size()));
+                String name = "Churn " + churned++;
+                primary.addMedicine(new Medicine(name, "Painkiller", "Square", 500, 10, p.getName()));
+                added.add(new String[]{p.getName(), name});
+                if (added.size() > 50) {
+                    String[] oldest = added.poll();
+                    primary.deleteMedicine(oldest[0], oldest[1]);
+                }
+            }
+        }
+        long stoppedAt = System.currentTimeMillis();
+        while (!publisher.isCaughtUp() && System.currentTimeMillis() - stoppedAt < 10_000) {
+            Thread.sleep(5);
+        }
+        long catchUpMillis = System.currentTimeMillis() - stoppedAt;
+        publisher.stop();
+        searching.set(false);
+        searcher.join();
+
+        int[] mismatches = new int[2];
+        primary.forEachMedicine((p, m) -> {
+            ReadReplica[] replicas = {nearby, faraway};
+            for (int i = 0; i < replicas.length; i++) {
+                Medicine copy = replicas[i].getMedicineDetails(p.getName(), m.getName());
+                if (copy == null || copy.getStock() != m.getStock() || copy.getPricePaisa() != m.getPricePaisa()) {
+                    mismatches[i]++;
+                }
+            }
+        });
+        System.out.printf("%,d sales in %d s on the primary (%,d pharmacies)%n", sales, seconds, pharmacyCount);
+        System.out.printf("Replicas caught up %d ms after the load stopped%n", catchUpMillis);
+        System.out.printf("Mismatched medicines: replica-1 %d, replica-2 %d (%,d medicines added and deleted meanwhile)%n",
+                mismatches[0], mismatches[1], churned);
+        System.out.printf("Searches on the replicas during the run: %,d, failed: %d%n", searches[0], searches[1]);
+        System.out.println("Publisher: " + publisher.getStats());
+        System.out.println("Network: " + network.getStats());
+        System.out.println(nearby.getStats());
+        System.out.println(faraway.getStats());
+        network.shutdown();
+    }
+}
+
+/**
+ * Compares one PharmacyService holding the whole catalog with a ShardRouter over several shards: search latency
+ * (top 20, random buyer locations so the caches don't answer), whether the merged results match, how evenly the
+ * ring spreads pharmacies, and how many move when a shard is added.
+ * Usage: ShardingBenchmark [pharmacies] [shards]
+ */
+class ShardingBenchmark {
+    public static void main(String[] args) {
+        int pharmacyCount = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int shardCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int limit = 20;
+        // The generator is seeded, so both calls build the same catalog; each side gets its own objects.
+        PharmacyService single = new PharmacyService(SnapshotBenchmark.syntheticCatalog(pharmacyCount, 50));
+        ShardRouter router = new ShardRouter(128, shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            router.addShard("shard-" + i);
+        }
+        for (Pharmacy p : SnapshotBenchmark.syntheticCatalog(pharmacyCount, 50)) {
+            router.addPharmacy(p);
+        }
+        System.out.println("Pharmacies per shard: " + router.getShardSizes());
+
+        Random random = new Random(5);
+        int queries = 300;
+        long[] singleNanos = new long[queries];
+        long[] shardedNanos = new long[queries];
+        int mismatched = 0;
+        for (int q = 0; q < queries; q++) {
+            String term = "Medicine " + random.nextInt(200);
+            Location buyer = new Location(23.70 + random.nextDouble() * 0.2, 90.33 + random.nextDouble() * 0.1);
+            long start = System.nanoTime();
+            List<SearchResult> expected = single.searchMedicine(term, buyer);
+            expected = expected.subList(0, Math.min(limit, expected.size()));
+            singleNanos[q] = System.nanoTime() - start;
+            start = System.nanoTime();
+            List<SearchResult> merged = router.searchMedicine(term, buyer, limit);
+            shardedNanos[q] = System.nanoTime() - start;
+            for (int i = 0; i < Math.max(expected.size(), merged.size()); i++) {
+                if (i >= expected.size() || i >= merged.size() || expected.get(i).getDistance() != merged.get(i).getDistance()) {
+                    mismatched++;
+                    break;
+                }
+            }
+        }
+        SnapshotBenchmark.report("Single service", singleNanos);
+        SnapshotBenchmark.report(shardCount + " shards", shardedNanos);
+        System.out.printf("Queries where the merged top %d differs: %d of %d%n", limit, mismatched, queries);
+
+        User buyer = new User("Load Test");
+        Medicine before = router.getMedicineDetails("Pharmacy 7", firstMedicine(single, "Pharmacy 7"));
+        int stockBefore = before.getStock();
+        boolean bought = router.buyMedicine(buyer, "Pharmacy 7", before.getName(), 1);
+        System.out.printf("Routed buy of %s at Pharmacy 7: %s, stock %d -> %d%n", before.getName(), bought, stockBefore,
+                router.getMedicineDetails("Pharmacy 7", before.getName()).getStock());
+
+        // hash % N would move a pharmacy whenever its bucket changes; the ring only moves what the new shard takes over.
+        int moduloMoves = 0;
+        for (int i = 0; i < pharmacyCount; i++) {
+            long h = ConsistentHashRing.hash("p" + i);
+            if (Math.floorMod(h, shardCount) != Math.floorMod(h, shardCount + 1)) {
+                moduloMoves++;
+            }
+        }
+        long start = System.nanoTime();
+        int moved = router.addShard("shard-" + shardCount);
+        System.out.printf("Adding shard-%d moved %,d of %,d pharmacies (%.1f%%) in %.1f ms; hash %% N would move %,d (%.1f%%)%n",
+                shardCount, moved, pharmacyCount, 100.0 * moved / pharmacyCount, (System.nanoTime() - start) / 1e6,
+                moduloMoves, 100.0 * moduloMoves / pharmacyCount);
+        System.out.println("Pharmacies per shard: " + router.getShardSizes());
+        System.out.printf("Stock of %s at Pharmacy 7 after the move: %d%n", before.getName(),
+                router.getMedicineDetails("Pharmacy 7", before.getName()).getStock());
+        router.shutdown();
+    }
+
+    private static String firstMedicine(PharmacyService service, String pharmacyName) {
+        String[] name = {null};
+        service.forEachPharmacy(p -> {
+            if (p.getName().equals(pharmacyName)) {
+                name[0] = p.getInventory().get(0).getName();
+            }
+        });
+        return name[0];
+    }
+}
+
+/**
+ * Generates a city-scale catalog and a Zipfian buyer/admin workload, records the workload as a trace file, and replays
+ * that trace at a target rate, twice, each time against a freshly generated catalog. It prints throughput and latency
+ * percentiles, and checks that both replays did exactly the same thing. The first replay runs on a cold JVM
+ * (no JIT yet), so the second one is the number to size hardware with.
+ * Usage: LoadSimulator [pharmacies] [skus] [operations] [opsPerSecond] [traceFile]
+ * If traceFile exists it is replayed as-is; otherwise a new trace is generated and written there.
+ */
+class LoadSimulator {
+    public static void main(String[] args) throws IOException {
+        int pharmacyCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int skuCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 500;
+        Path trace = args.length > 4 ? Paths.get(args[4]) : Files.createTempFile("ems-workload", ".trace");
+        double clusterRadiusKm = 1.5;
+        CityCatalogGenerator catalogGenerator = new CityCatalogGenerator(17, pharmacyCount, skuCount, 100, 0.08, clusterRadiusKm);
+
+        long start = System.nanoTime();
+        List<Pharmacy> catalog = catalogGenerator.generate();
+        int medicines = 0;
+        for (Pharmacy p : catalog) {
+            medicines += p.getInventory().size();
+        }
+        System.out.printf("Catalog: %,d pharmacies, %,d SKUs, %,d stocked medicines, generated in %.0f ms%n",
+                pharmacyCount, skuCount, medicines, (System.nanoTime() - start) / 1e6);
+
+        if (args.length > 4 && Files.exists(trace)) {
+            System.out.println("Replaying " + trace);
+        } else {
+            // 85% searches, 12% purchases, 3% admin edits.
+            List<WorkloadOp> generated = new WorkloadGenerator(catalogGenerator, catalog, 0.85, 0.12, clusterRadiusKm).generate(23, operations);
+            WorkloadGenerator.write(generated, trace);
+            System.out.printf("Recorded %,d operations to %s (%,d bytes)%n", generated.size(), trace, Files.size(trace));
+        }
+        List<WorkloadOp> ops = WorkloadGenerator.read(trace);
+
+        long firstChecksum = 0;
+        for (int run = 1; run <= 2; run++) {
+            PharmacyService service = new PharmacyService(run == 1 ? catalog : catalogGenerator.generate());
+            LoadReport report = new LoadReplayer(service).replay(ops, rate);
+            System.out.printf("Replay %d at %,.0f ops/s target: %s", run, rate, report);
+            if (run == 1) {
+                firstChecksum = report.getOutcomeChecksum();
+            } else {
+                System.out.println(report.getOutcomeChecksum() == firstChecksum
+                        ? "Both replays returned identical results." : "The replays returned different results!");
+            }
+        }
+        if (args.length <= 4) {
+            Files.delete(trace);
+        }
+    }
+}
+
+/**
+ * Builds a long synthetic sales history and times three typical questions both ways, with a full scan of the record list
+ * (what getPurchaseHistory() forced before) and with SalesHistoryIndex: one pharmacy's last 24 hours, one customer's
+ * purchases, and all sales in the last hour.
+ * Usage: HistoryQueryBenchmark [records] [days]
+ */
+class HistoryQueryBenchmark {
+    public static void main(String[] args) {
+        int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        long now = System.currentTimeMillis();
+        long span = days * 24L * 60 * 60 * 1000;
+        SalesHistoryIndex index = new SalesHistoryIndex(SalesHistoryIndex.DEFAULT_SEGMENT_MILLIS);
+        long start = System.nanoTime();
+        List<PurchaseRecord> list = syntheticHistory(recordCount, now - span, now);
+        for (PurchaseRecord record : list) {
+            index.add(record);
+        }
+        System.out.printf("%,d records over %d days, generated and indexed in %.0f ms%n", recordCount, days, (System.nanoTime() - start) / 1e6);
+
+        long dayAgo = now - 24L * 60 * 60 * 1000;
+        long hourAgo = now - 60L * 60 * 1000;
+        compare("Pharmacy 42, last 24h",
+                () -> scan(list, r -> r.getPharmacyName().equals("Pharmacy 42") && r.getTimestampMillis() >= dayAgo),
+                () -> index.forPharmacy("Pharmacy 42", dayAgo, Long.MAX_VALUE).size());
+        compare("Customer 4242, all time",
+                () -> scan(list, r -> r.getCustomerName().equals("Customer 4242")),
+                () -> index.forCustomer("Customer 4242", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        compare("All sales, last hour",
+                () -> scan(list, r -> r.getTimestampMillis() >= hourAgo),
+                () -> index.between(hourAgo, Long.MAX_VALUE).size());
+    }
+
+    // Sales spread evenly from 'fromMillis' to 'toMillis', in time order as they arrive in the app.
+    static List<PurchaseRecord> syntheticHistory(int count, long fromMillis, long toMillis) {
+        Random random = new Random(9);
+        List<PurchaseRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long timestamp = fromMillis + (toMillis - fromMillis) * i / count;
+            int quantity = 1 + random.nextInt(3);
+            records.add(new PurchaseRecord("Customer " + random.nextInt(100_000), "Medicine " + random.nextInt(2000), quantity,
+                    quantity * (100L + random.nextInt(5000)), "Pharmacy " + random.nextInt(1000), timestamp));
+        }
+        return records;
+    }
+
+    private static int scan(List<PurchaseRecord> records, Predicate<PurchaseRecord> matches) {
+        int found = 0;
+        for (PurchaseRecord r : records) {
+            if (matches.test(r)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static void compare(String label, IntSupplier scan, IntSupplier indexed) {
+        long[] scanNanos = new long[20];
+        long[] indexNanos = new long[20];
+        int scanned = 0, found = 0;
+        for (int run = 0; run < scanNanos.length; run++) {
+            long start = System.nanoTime();
+            scanned = scan.getAsInt();
+            scanNanos[run] = System.nanoTime() - start;
+            start = System.nanoTime();
+            found = indexed.getAsInt();
+            indexNanos[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(scanNanos);
+        Arrays.sort(indexNanos);
+        System.out.printf("%-24s %,7d records  full scan %8.3f ms  index %8.3f ms%s%n", label, found,
+                scanNanos[scanNanos.length / 2] / 1e6, indexNanos[indexNanos.length / 2] / 1e6, scanned == found ? "" : "  MISMATCH " + scanned);
+    }
+}
+
+/**
+ * Rolls a long synthetic sales history into a ColumnarSalesArchive and compares it with a row-wise log of the same
+ * sales (CSV, plain and gzipped): size on disk, and how fast "revenue per pharmacy" and "units per medicine, last week"
+ * run on the archive files against the same aggregation over PurchaseRecord objects on the heap.
+ * Usage: ArchiveBenchmark [records] [days]
+ */
+class ArchiveBenchmark {
+    public static void main(String[] args) throws IOException {
+        int recordCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 90;
+        long dayMillis = 24L * 60 * 60 * 1000;
+        // I end the history at a window boundary, so every segment is closed and goes to the archive.
+        long end = Math.floorDiv(System.currentTimeMillis(), dayMillis) * dayMillis;
+        List<PurchaseRecord> records = HistoryQueryBenchmark.syntheticHistory(recordCount, end - days * dayMillis, end);
+
+        Path dir = Files.createTempDirectory("ems-archive");
+        Path csv = dir.resolve("history.csv");
+        Path gzip = dir.resolve("history.csv.gz");
+        try (BufferedWriter out = Files.newBufferedWriter(csv)) {
+            for (PurchaseRecord r : records) {
+                out.write(r.getTimestampMillis() + "," + r.getCustomerName() + "," + r.getMedicineName() + "," + r.getQuantity()
+                        + "," + Money.toPlainString(r.getTotalPaisa()) + "," + r.getPharmacyName());
+                out.newLine();
+            }
+        }
+        try (java.util.zip.GZIPOutputStream out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(gzip))) {
+            Files.copy(csv, out);
+        }
+
+        SalesHistoryIndex history = new SalesHistoryIndex(SalesHistoryIndex.DEFAULT_SEGMENT_MILLIS);
+        for (PurchaseRecord r : records) {
+            history.add(r);
+        }
+        ColumnarSalesArchive archive = new ColumnarSalesArchive(dir.resolve("archive"));
+        long start = System.nanoTime();
+        for (Map.Entry<Long, List<PurchaseRecord>> segment : history.closedSegments(end).entrySet()) {
+            archive.write(segment.getKey(), segment.getValue());
+            history.dropSegment(segment.getKey(), segment.getValue().size());
+        }
+        long writeNanos = System.nanoTime() - start;
+        long archiveBytes = 0;
+        for (Path p : archive.files()) {
+            archiveBytes += Files.size(p);
+        }
+        long csvBytes = Files.size(csv);
+        long gzipBytes = Files.size(gzip);
+        System.out.printf("%,d sales over %d days, archived into %d files in %.0f ms (%d left in memory)%n",
+                recordCount, days, archive.files().size(), writeNanos / 1e6, history.size());
+        System.out.printf("Row-wise CSV %,13d bytes  %5.1f bytes/sale%n", csvBytes, (double) csvBytes / recordCount);
+        System.out.printf("CSV + gzip   %,13d bytes  %5.1f bytes/sale%n", gzipBytes, (double) gzipBytes / recordCount);
+        System.out.printf("Columnar     %,13d bytes  %5.1f bytes/sale  (CSV %.1fx, gzip %.2fx the size)%n",
+                archiveBytes, (double) archiveBytes / recordCount, (double) csvBytes / archiveBytes, (double) gzipBytes / archiveBytes);
+
+        long weekAgo = end - 7 * dayMillis + dayMillis / 2; // Half-way through a day, so one file is only partly in range.
+        long[] heapNanos = new long[10];
+        long[] archiveNanos = new long[10];
+        long[] heapWeekNanos = new long[10];
+        long[] archiveWeekNanos = new long[10];
+        long[] heapDayNanos = new long[10];
+        long[] archiveDayNanos = new long[10];
+        long dayStart = end - days / 2 * dayMillis; // One whole day in the middle: the other files are skipped by their headers.
+        long heapDay = 0, archivedDay = 0;
+        int inWeek = 0, inDay = 0; // Sales in each range, for a fair sales/s figure.
+        for (PurchaseRecord r : records) {
+            inWeek += r.getTimestampMillis() >= weekAgo ? 1 : 0;
+            inDay += r.getTimestampMillis() >= dayStart && r.getTimestampMillis() < dayStart + dayMillis ? 1 : 0;
+        }
+        Map<String, Long> heapRevenue = null, archivedRevenue = null, heapUnits = null, archivedUnits = null;
+        for (int run = 0; run < heapNanos.length; run++) {
+            start = System.nanoTime();
+            heapRevenue = new HashMap<>();
+            for (PurchaseRecord r : records) {
+                heapRevenue.merge(r.getPharmacyName(), r.getTotalPaisa(), Long::sum);
+            }
+            heapNanos[run] = System.nanoTime() - start;
+            start = System.nanoTime();
+            archivedRevenue = archive.revenueByPharmacy(Long.MIN_VALUE, Long.MAX_VALUE);
+            archiveNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            heapUnits = new HashMap<>();
+            for (PurchaseRecord r : records) {
+                if (r.getTimestampMillis() >= weekAgo) {
+                    heapUnits.merge(r.getMedicineName(), (long) r.getQuantity(), Long::sum);
+                }
+            }
+            heapWeekNanos[run] = System.nanoTime() - start;
+            start = System.nanoTime();
+            archivedUnits = archive.unitsByMedicine(weekAgo, Long.MAX_VALUE);
+            archiveWeekNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            heapDay = 0;
+            for (PurchaseRecord r : records) {
+                if (r.getTimestampMillis() >= dayStart && r.getTimestampMillis() < dayStart + dayMillis) {
+                    heapDay += r.getTotalPaisa();
+                }
+            }
+            heapDayNanos[run] = System.nanoTime() - start;
+            start = System.nanoTime();
+            archivedDay = archive.totalRevenue(dayStart, dayStart + dayMillis);
+            archiveDayNanos[run] = System.nanoTime() - start;
+        }
+        report("Revenue per pharmacy, all", recordCount, heapNanos, archiveNanos, heapRevenue.equals(archivedRevenue));
+        report("Units per medicine, week", inWeek, heapWeekNanos, archiveWeekNanos, heapUnits.equals(archivedUnits));
+        report("Total revenue, one day", inDay, heapDayNanos, archiveDayNanos, heapDay == archivedDay);
+
+        for (Path p : archive.files()) {
+            Files.delete(p);
+        }
+        Files.delete(dir.resolve("archive"));
+        Files.delete(csv);
+        Files.delete(gzip);
+        Files.delete(dir);
+    }
+
+    // 'records' is the number of sales in the query's range; the heap side still has to look at all of them.
+    private static void report(String label, int records, long[] heapNanos, long[] archiveNanos, boolean same) {
+        Arrays.sort(heapNanos);
+        Arrays.sort(archiveNanos);
+        double heap = heapNanos[heapNanos.length / 2] / 1e6;
+        double archived = archiveNanos[archiveNanos.length / 2] / 1e6;
+        System.out.printf("%-26s heap objects %7.1f ms  archive %7.1f ms (%,.0f M sales/s)  %s%n", label, heap, archived,
+                records / (archived / 1e3) / 1e6, same ? "same totals" : "TOTALS DIFFER");
+    }
 }